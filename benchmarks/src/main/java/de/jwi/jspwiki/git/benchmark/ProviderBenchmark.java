@@ -0,0 +1,162 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git.benchmark;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.providers.WikiPageProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of the provider operations JSPWiki calls most.
+ *
+ * Run with -prof gc to get the allocation rate per operation.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ProviderBenchmark
+{
+	/**
+	 * Picks a different page for every call, the same sequence in every run.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		private Random random;
+
+		private int pages;
+
+		private int attachmentPages;
+
+		private int sizes;
+
+		@Setup(Level.Trial)
+		public void setUp(SyntheticWiki wiki)
+		{
+			random = new Random(4711);
+			pages = wiki.pages;
+			attachmentPages = Math.max(1, Math.min(wiki.attachmentPages, wiki.pages));
+			sizes = wiki.sizes.length;
+		}
+
+		int page()
+		{
+			return random.nextInt(pages);
+		}
+
+		int attachmentPage()
+		{
+			return random.nextInt(attachmentPages);
+		}
+
+		int size()
+		{
+			return random.nextInt(sizes);
+		}
+
+		Random random()
+		{
+			return random;
+		}
+	}
+
+	@Benchmark
+	public void putPageText(SyntheticWiki wiki, Cursor cursor) throws Exception
+	{
+		int p = cursor.page();
+
+		wiki.pageProvider.putPageText(wiki.newPage(p), SyntheticWiki.pageText(p, cursor.random().nextInt()));
+	}
+
+	@Benchmark
+	public String getPageTextLatest(SyntheticWiki wiki, Cursor cursor) throws Exception
+	{
+		return wiki.pageProvider.getPageText(SyntheticWiki.pageName(cursor.page()), WikiPageProvider.LATEST_VERSION);
+	}
+
+	@Benchmark
+	public String getPageTextOld(SyntheticWiki wiki, Cursor cursor) throws Exception
+	{
+		return wiki.pageProvider.getPageText(SyntheticWiki.pageName(cursor.page()), 1);
+	}
+
+	@Benchmark
+	public List getVersionHistory(SyntheticWiki wiki, Cursor cursor) throws Exception
+	{
+		return wiki.pageProvider.getVersionHistory(SyntheticWiki.pageName(cursor.page()));
+	}
+
+	@Benchmark
+	public boolean pageExistsOld(SyntheticWiki wiki, Cursor cursor) throws Exception
+	{
+		return wiki.pageProvider.pageExists(SyntheticWiki.pageName(cursor.page()), 1);
+	}
+
+	@Benchmark
+	public List getVersionHistoryNewest(SyntheticWiki wiki, Cursor cursor) throws Exception
+	{
+		return wiki.pageProvider.getVersionHistory(SyntheticWiki.pageName(cursor.page()), 0, 20);
+	}
+
+	@Benchmark
+	public WikiPage getPageInfo(SyntheticWiki wiki, Cursor cursor) throws Exception
+	{
+		return wiki.pageProvider.getPageInfo(SyntheticWiki.pageName(cursor.page()), WikiPageProvider.LATEST_VERSION);
+	}
+
+	@Benchmark
+	public Collection getAllPages(SyntheticWiki wiki) throws Exception
+	{
+		return wiki.pageProvider.getAllPages();
+	}
+
+	@Benchmark
+	public Collection listAttachments(SyntheticWiki wiki, Cursor cursor) throws Exception
+	{
+		return wiki.attachmentProvider.listAttachments(wiki.newPage(cursor.attachmentPage()));
+	}
+
+	@Benchmark
+	public List listAllChanged(SyntheticWiki wiki) throws Exception
+	{
+		return wiki.attachmentProvider.listAllChanged(wiki.created);
+	}
+
+	@Benchmark
+	public void putAttachmentData(SyntheticWiki wiki, Cursor cursor) throws Exception
+	{
+		wiki.putAttachment(cursor.attachmentPage(), wiki.sizes[cursor.size()], cursor.random());
+	}
+}
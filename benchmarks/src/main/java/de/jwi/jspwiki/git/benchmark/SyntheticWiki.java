@@ -0,0 +1,201 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.attachment.Attachment;
+import org.eclipse.jgit.api.Git;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.jwi.jspwiki.git.GitAttachmentProvider;
+import de.jwi.jspwiki.git.GitFileProvider;
+
+/**
+ * A page and an attachment repository with the given number of pages, each
+ * saved the given number of times. The first attachmentPages pages get one
+ * attachment of each of the attachmentSizes, saved as often as the pages.
+ *
+ * Provider properties, for example the commit mode, can be passed as system
+ * properties.
+ */
+@State(Scope.Benchmark)
+public class SyntheticWiki
+{
+	@Param({ "1000" })
+	public int pages;
+
+	@Param({ "10" })
+	public int versions;
+
+	@Param({ "100" })
+	public int attachmentPages;
+
+	@Param({ "1024,65536,1048576" })
+	public String attachmentSizes;
+
+	public WikiEngine engine;
+
+	public GitFileProvider pageProvider;
+
+	public GitAttachmentProvider attachmentProvider;
+
+	/**
+	 * the time the repositories were filled
+	 */
+	public Date created;
+
+	public int[] sizes;
+
+	private File root;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		root = File.createTempFile("gitfileprovider-benchmark", "");
+		root.delete();
+
+		File pageDir = new File(root, "wp");
+		File attachmentDir = new File(root, "wa");
+
+		Git.init().setDirectory(pageDir).call().close();
+		Git.init().setDirectory(attachmentDir).call().close();
+
+		// the engine gets its own providers, ours are set up below
+		Properties engineProperties = new Properties();
+		engineProperties.setProperty("jspwiki.fileSystemProvider.pageDir", new File(root, "engine").getPath());
+		engineProperties.setProperty("jspwiki.basicAttachmentProvider.storageDir",
+				new File(root, "engine").getPath());
+		engineProperties.setProperty("jspwiki.workDir", new File(root, "work").getPath());
+
+		engine = new WikiEngine(engineProperties);
+
+		Properties properties = new Properties();
+		properties.setProperty("jspwiki.fileSystemProvider.pageDir", pageDir.getPath());
+		properties.setProperty("jspwiki.gitAttachmentProvider.storageDir", attachmentDir.getPath());
+		for (String key : System.getProperties().stringPropertyNames())
+		{
+			if (key.startsWith("jspwiki."))
+			{
+				properties.setProperty(key, System.getProperty(key));
+			}
+		}
+
+		pageProvider = new GitFileProvider();
+		pageProvider.initialize(engine, properties);
+
+		attachmentProvider = new GitAttachmentProvider();
+		attachmentProvider.initialize(engine, properties);
+
+		String[] s = attachmentSizes.split(",");
+		sizes = new int[s.length];
+		for (int i = 0; i < s.length; i++)
+		{
+			sizes[i] = Integer.parseInt(s[i].trim());
+		}
+
+		Random random = new Random(42);
+
+		for (int v = 1; v <= versions; v++)
+		{
+			for (int p = 0; p < pages; p++)
+			{
+				pageProvider.putPageText(newPage(p), pageText(p, v));
+
+				if (p < attachmentPages)
+				{
+					for (int size : sizes)
+					{
+						putAttachment(p, size, random);
+					}
+				}
+			}
+		}
+
+		created = new Date();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		// the providers close their repositories on the shutdown event
+		engine.shutdown();
+
+		FileUtils.deleteDirectory(root);
+	}
+
+	public static String pageName(int p)
+	{
+		return "Benchmark Page " + p;
+	}
+
+	public static String attachmentName(int size)
+	{
+		return "data-" + size + ".bin";
+	}
+
+	public WikiPage newPage(int p)
+	{
+		WikiPage page = new WikiPage(engine, pageName(p));
+		page.setAuthor("benchmark");
+		page.setAttribute(WikiPage.CHANGENOTE, "benchmark");
+		page.setLastModified(new Date());
+
+		return page;
+	}
+
+	public static String pageText(int p, int v)
+	{
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("!!! ").append(pageName(p)).append('\n');
+		for (int line = 0; line < 50; line++)
+		{
+			sb.append("Line ").append(line).append(" of version ").append(v)
+					.append(", some [links|Benchmark Page ").append(line).append("] and text.\n");
+		}
+
+		return sb.toString();
+	}
+
+	public void putAttachment(int p, int size, Random random) throws Exception
+	{
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+
+		Attachment attachment = new Attachment(engine, pageName(p), attachmentName(size));
+		attachment.setAuthor("benchmark");
+		attachment.setLastModified(new Date());
+		attachment.setSize(size);
+
+		attachmentProvider.putAttachmentData(attachment, new ByteArrayInputStream(data));
+	}
+}
@@ -0,0 +1,204 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import org.apache.wiki.util.TextUtil;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Contents of blobs, keyed by their id and bounded by their total size.
+ *
+ * Blobs are immutable and their id is the hash of their content, so one
+ * instance is shared by all repositories in the JVM, and content shared by
+ * several pages or attachments is held once. The contents can be held
+ * outside the heap, in direct buffers.
+ */
+public class BlobCache
+{
+	/**
+	 * maximum number of bytes held in the blob cache
+	 */
+	public static final String PROP_BLOBCACHESIZE = "jspwiki.gitProvider.blobCacheSize";
+
+	/**
+	 * hold the cached blobs in direct buffers, outside the heap
+	 */
+	public static final String PROP_BLOBCACHEDIRECT = "jspwiki.gitProvider.blobCacheDirect";
+
+	public static final int DEFAULT_BLOBCACHESIZE = 16 * 1024 * 1024;
+
+	private static BlobCache instance;
+
+	private final BoundedCache<ObjectId, ByteBuffer> cache;
+
+	private final boolean direct;
+
+	private final long maxBlobSize;
+
+	/**
+	 * @return the blob cache, created with the given properties on the first
+	 *         call
+	 */
+	public static synchronized BlobCache getInstance(Properties properties)
+	{
+		if (instance == null)
+		{
+			int size = TextUtil.getIntegerProperty(properties, PROP_BLOBCACHESIZE, DEFAULT_BLOBCACHESIZE);
+			boolean direct = TextUtil.getBooleanProperty(properties, PROP_BLOBCACHEDIRECT, false);
+
+			instance = new BlobCache(size, direct);
+		}
+
+		return instance;
+	}
+
+	public BlobCache(long maxBytes, boolean direct)
+	{
+		this.direct = direct;
+
+		// a single blob must not push out the whole cache
+		this.maxBlobSize = maxBytes / 16;
+
+		cache = new BoundedCache<ObjectId, ByteBuffer>(maxBytes, new BoundedCache.Weigher<ByteBuffer>()
+		{
+			public long weigh(ByteBuffer value)
+			{
+				return value.capacity();
+			}
+		});
+	}
+
+	/**
+	 * @return a stream over the cached content of the blob, or null if it is
+	 *         not cached
+	 */
+	public InputStream open(AnyObjectId blobId)
+	{
+		ByteBuffer buf = cache.get(blobId.toObjectId());
+
+		if (buf == null)
+		{
+			return null;
+		}
+
+		return new ByteBufferInputStream(buf.duplicate());
+	}
+
+	public boolean isCacheable(long size)
+	{
+		return size <= maxBlobSize;
+	}
+
+	public void put(AnyObjectId blobId, byte[] content)
+	{
+		if (!isCacheable(content.length))
+		{
+			return;
+		}
+
+		ByteBuffer buf;
+		if (direct)
+		{
+			buf = ByteBuffer.allocateDirect(content.length);
+			buf.put(content);
+			buf.flip();
+		} else
+		{
+			buf = ByteBuffer.wrap(content);
+		}
+
+		cache.put(blobId.toObjectId(), buf.asReadOnlyBuffer());
+	}
+
+	public void clear()
+	{
+		cache.clear();
+	}
+
+	/**
+	 * @return the share of lookups answered from the cache
+	 */
+	public double getHitRatio()
+	{
+		long hits = cache.getHitCount();
+		long lookups = hits + cache.getMissCount();
+
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public long getResidentBytes()
+	{
+		return cache.getWeight();
+	}
+
+	public String toString()
+	{
+		return String.format("blobs=%d, bytes=%d/%d, hit ratio=%.2f, evictions=%d%s", cache.size(),
+				getResidentBytes(), cache.getMaxWeight(), getHitRatio(), cache.getEvictionCount(),
+				direct ? ", direct" : "");
+	}
+
+	private static class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buf;
+
+		ByteBufferInputStream(ByteBuffer buf)
+		{
+			this.buf = buf;
+		}
+
+		public int read()
+		{
+			return buf.hasRemaining() ? buf.get() & 0xff : -1;
+		}
+
+		public int read(byte[] b, int off, int len)
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			if (!buf.hasRemaining())
+			{
+				return -1;
+			}
+
+			int n = Math.min(len, buf.remaining());
+			buf.get(b, off, n);
+			return n;
+		}
+
+		public long skip(long n)
+		{
+			int skipped = (int) Math.min(Math.max(n, 0), buf.remaining());
+			buf.position(buf.position() + skipped);
+			return skipped;
+		}
+
+		public int available()
+		{
+			return buf.remaining();
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent cache bounded by the total weight of its values.
+ *
+ * Reads take no lock, they only stamp the entry with its access time. When a
+ * put pushes the total weight over the maximum, the least recently used
+ * entries are evicted in one batch until the weight is back below the low
+ * water mark, so the cost of eviction is spread over many puts.
+ */
+public class BoundedCache<K, V>
+{
+	public interface Weigher<V>
+	{
+		long weigh(V value);
+	}
+
+	private static class Node<V>
+	{
+		final V value;
+
+		final long weight;
+
+		volatile long accessed;
+
+		Node(V value, long weight)
+		{
+			this.value = value;
+			this.weight = weight;
+			this.accessed = System.nanoTime();
+		}
+	}
+
+	/**
+	 * An entry with its access time frozen, so sorting is not disturbed by
+	 * concurrent reads.
+	 */
+	private static class Candidate<K, V>
+	{
+		final K key;
+
+		final Node<V> node;
+
+		final long accessed;
+
+		Candidate(K key, Node<V> node)
+		{
+			this.key = key;
+			this.node = node;
+			this.accessed = node.accessed;
+		}
+	}
+
+	private static final Comparator<Candidate<?, ?>> LRU = new Comparator<Candidate<?, ?>>()
+	{
+		public int compare(Candidate<?, ?> c1, Candidate<?, ?> c2)
+		{
+			return c1.accessed < c2.accessed ? -1 : (c1.accessed == c2.accessed ? 0 : 1);
+		}
+	};
+
+	private final ConcurrentMap<K, Node<V>> map = new ConcurrentHashMap<K, Node<V>>();
+
+	private final Weigher<V> weigher;
+
+	private final long maxWeight;
+
+	private final long lowWaterMark;
+
+	private final Object evictionLock = new Object();
+
+	private final AtomicLong weight = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	public BoundedCache(long maxWeight, Weigher<V> weigher)
+	{
+		this.maxWeight = maxWeight;
+		this.lowWaterMark = maxWeight - maxWeight / 10;
+		this.weigher = weigher;
+	}
+
+	public V get(K key)
+	{
+		Node<V> node = map.get(key);
+
+		if (node == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+
+		node.accessed = System.nanoTime();
+		hits.incrementAndGet();
+
+		return node.value;
+	}
+
+	public void put(K key, V value)
+	{
+		long w = weigher.weigh(value);
+
+		if (w > maxWeight)
+		{
+			remove(key);
+			return;
+		}
+
+		Node<V> node = new Node<V>(value, w);
+		Node<V> old = map.put(key, node);
+
+		long total = weight.addAndGet(old == null ? w : w - old.weight);
+
+		if (total > maxWeight)
+		{
+			evict();
+		}
+	}
+
+	public void remove(K key)
+	{
+		Node<V> old = map.remove(key);
+
+		if (old != null)
+		{
+			weight.addAndGet(-old.weight);
+		}
+	}
+
+	public void clear()
+	{
+		for (K key : map.keySet())
+		{
+			remove(key);
+		}
+	}
+
+	private void evict()
+	{
+		synchronized (evictionLock)
+		{
+			if (weight.get() <= maxWeight)
+			{
+				return;
+			}
+
+			List<Candidate<K, V>> candidates = new ArrayList<Candidate<K, V>>(map.size());
+
+			for (Map.Entry<K, Node<V>> e : map.entrySet())
+			{
+				candidates.add(new Candidate<K, V>(e.getKey(), e.getValue()));
+			}
+
+			Collections.sort(candidates, LRU);
+
+			for (Candidate<K, V> c : candidates)
+			{
+				if (weight.get() <= lowWaterMark)
+				{
+					break;
+				}
+
+				if (map.remove(c.key, c.node))
+				{
+					weight.addAndGet(-c.node.weight);
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public int size()
+	{
+		return map.size();
+	}
+
+	public long getWeight()
+	{
+		return weight.get();
+	}
+
+	public long getMaxWeight()
+	{
+		return maxWeight;
+	}
+
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	public String toString()
+	{
+		return String.format("size=%d, weight=%d/%d, hits=%d, misses=%d, evictions=%d", size(), getWeight(),
+				maxWeight, getHitCount(), getMissCount(), getEvictionCount());
+	}
+}
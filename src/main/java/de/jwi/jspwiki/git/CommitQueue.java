@@ -0,0 +1,334 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records commits on a single background thread, in the order they were
+ * queued. The content of every change is already in the object database when
+ * it is queued, so later saves of the same file cannot overwrite it.
+ *
+ * A commit that cannot be recorded is retried until it is, keeping its
+ * pending versions, which match the files and the page metadata. Meanwhile
+ * new commits are refused and flush and close fail.
+ */
+public class CommitQueue implements Runnable
+{
+	private static final Logger log = Logger.getLogger(CommitQueue.class);
+
+	private static class Request
+	{
+		final List<PathChange> changes;
+
+		final PageMetaData metaData;
+
+		Request(List<PathChange> changes, PageMetaData metaData)
+		{
+			this.changes = changes;
+			this.metaData = metaData;
+		}
+	}
+
+	private static final Request STOP = new Request(null, null);
+
+	/**
+	 * first delay in ms before a failed commit is retried, doubled after each
+	 * failure up to MAX_RETRY_DELAY
+	 */
+	static final long RETRY_DELAY = 1000;
+
+	static final long MAX_RETRY_DELAY = 60 * 1000;
+
+	private final GitController gitController;
+
+	private final BlockingQueue<Request> queue;
+
+	/**
+	 * held while a commit is added to the pending versions and queued, so
+	 * both happen in the same order
+	 */
+	private final Object putLock = new Object();
+
+	private Thread thread;
+
+	private boolean closed;
+
+	private long queued;
+
+	private long done;
+
+	private long failed;
+
+	/**
+	 * why the commit being retried failed, null if commits succeed
+	 */
+	private GitException failure;
+
+	private int maxDepth;
+
+	public CommitQueue(GitController gitController, int capacity)
+	{
+		this.gitController = gitController;
+		this.queue = new LinkedBlockingQueue<Request>(capacity);
+	}
+
+	public void start(String name)
+	{
+		thread = new Thread(this, "git commit queue " + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Adds the changes to the pending versions of the history and queues the
+	 * commit, waiting for room if the queue is bounded and full. Commits are
+	 * recorded in the order their pending versions were added.
+	 *
+	 * @throws GitException
+	 *             if the queue is closed or a commit is failing
+	 */
+	public void put(List<PathChange> changes, PageMetaData metaData) throws InterruptedException, GitException
+	{
+		synchronized (putLock)
+		{
+			synchronized (this)
+			{
+				checkOpen();
+
+				queued++;
+
+				int depth = (int) (queued - done);
+				if (depth > maxDepth)
+				{
+					maxDepth = depth;
+				}
+			}
+
+			gitController.addPending(changes, metaData);
+
+			try
+			{
+				queue.put(new Request(changes, metaData));
+			} catch (InterruptedException e)
+			{
+				gitController.discardPending(changes);
+
+				synchronized (this)
+				{
+					queued--;
+					notifyAll();
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @throws GitException
+	 *             if the queue is closed or a commit is failing, so a save
+	 *             can be refused before it changes a file
+	 */
+	public synchronized void checkOpen() throws GitException
+	{
+		if (closed)
+		{
+			throw new GitException("commit queue is closed");
+		}
+
+		if (failure != null)
+		{
+			throw new GitException("a queued commit is failing, saves are refused until it is recorded", failure);
+		}
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			Request request;
+			try
+			{
+				request = queue.take();
+			} catch (InterruptedException e)
+			{
+				log.warn("commit queue interrupted, " + getDepth() + " commits not recorded");
+				return;
+			}
+
+			if (request == STOP)
+			{
+				return;
+			}
+
+			try
+			{
+				recordRetrying(request);
+			} catch (InterruptedException e)
+			{
+				log.warn("commit queue interrupted, " + getDepth() + " commits not recorded");
+				return;
+			}
+
+			synchronized (this)
+			{
+				done++;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Records the commit, retrying with growing delays until it succeeds or
+	 * the thread is interrupted.
+	 */
+	private void recordRetrying(Request request) throws InterruptedException
+	{
+		long delay = RETRY_DELAY;
+
+		while (true)
+		{
+			try
+			{
+				gitController.record(request.changes, request.metaData);
+
+				synchronized (this)
+				{
+					if (failure != null)
+					{
+						log.info("recorded " + request.metaData.changenote + " after it failed, accepting saves");
+						failure = null;
+					}
+				}
+				return;
+			} catch (Exception e)
+			{
+				log.error("could not commit " + request.metaData.changenote + ", retrying in " + delay + " ms", e);
+
+				synchronized (this)
+				{
+					failed++;
+					failure = e instanceof GitException ? (GitException) e : new GitException(e);
+					notifyAll();
+				}
+			}
+
+			Thread.sleep(delay);
+
+			delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+		}
+	}
+
+	/**
+	 * Waits until every commit queued before this call has been recorded.
+	 *
+	 * @throws GitException
+	 *             if a commit is failing, it is still being retried
+	 */
+	public void flush() throws InterruptedException, GitException
+	{
+		synchronized (this)
+		{
+			long target = queued;
+
+			while (done < target && thread.isAlive())
+			{
+				if (failure != null)
+				{
+					throw new GitException((target - done) + " commits not recorded yet", failure);
+				}
+
+				wait(1000);
+			}
+		}
+	}
+
+	/**
+	 * Records the queued commits and stops the background thread. Commits
+	 * queued after this call are rejected.
+	 *
+	 * @throws GitException
+	 *             if a commit is failing, the thread is stopped and the queued
+	 *             commits are not recorded, their files are left changed
+	 */
+	public void close() throws InterruptedException, GitException
+	{
+		synchronized (this)
+		{
+			closed = true;
+		}
+
+		try
+		{
+			flush();
+		} catch (GitException e)
+		{
+			thread.interrupt();
+			thread.join();
+
+			throw e;
+		}
+
+		queue.put(STOP);
+		thread.join();
+	}
+
+	/**
+	 * @return why the commit being retried failed, null if commits succeed
+	 */
+	public synchronized GitException getFailure()
+	{
+		return failure;
+	}
+
+	/**
+	 * @return the number of commits queued but not yet recorded
+	 */
+	public synchronized int getDepth()
+	{
+		return (int) (queued - done);
+	}
+
+	public synchronized int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	public synchronized long getCommitCount()
+	{
+		return done;
+	}
+
+	/**
+	 * @return the number of failed attempts to record a commit
+	 */
+	public synchronized long getFailureCount()
+	{
+		return failed;
+	}
+
+	public String toString()
+	{
+		return String.format("depth=%d, maxDepth=%d, commits=%d, failures=%d", getDepth(), getMaxDepth(),
+				getCommitCount(), getFailureCount());
+	}
+}
@@ -25,7 +25,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 
@@ -38,12 +37,17 @@ import org.apache.wiki.WikiProvider;
 import org.apache.wiki.api.exceptions.NoRequiredPropertyException;
 import org.apache.wiki.api.exceptions.ProviderException;
 import org.apache.wiki.attachment.Attachment;
+import org.apache.wiki.event.WikiEngineEvent;
+import org.apache.wiki.event.WikiEvent;
+import org.apache.wiki.event.WikiEventListener;
+import org.apache.wiki.event.WikiEventManager;
 import org.apache.wiki.providers.WikiAttachmentProvider;
 import org.apache.wiki.search.QueryItem;
 import org.apache.wiki.util.TextUtil;
 import org.apache.wiki.util.comparators.PageTimeComparator;
+import org.eclipse.jgit.diff.DiffEntry;
 
-public class GitAttachmentProvider implements WikiAttachmentProvider
+public class GitAttachmentProvider implements WikiAttachmentProvider, WikiEventListener
 {
 	private static final Logger log = Logger.getLogger(GitFileProvider.class);
 
@@ -53,6 +57,8 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 
 	protected GitUtil gitUtil;
 
+	protected Metrics metrics;
+
 	public static final String PROP_STORAGEDIR = "jspwiki.gitAttachmentProvider.storageDir";
 
 	public static final String GIT_DIR = ".git";
@@ -68,15 +74,34 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 
 		gitController = new GitController(attachmentDirectory);
 
+		gitController.configure(properties);
+
 		gitController.init();
 
+		metrics = gitController.getMetrics();
+
+		WikiEventManager.addWikiEventListener(engine, this);
+
 		gitUtil = new GitUtil(engine);
 	}
 
 	public String getProviderInfo()
 	{
-		// TODO Auto-generated method stub
-		return null;
+		String info = "blob cache: " + gitController.getBlobCache();
+
+		if (gitController.getCommitQueue() != null)
+		{
+			info += ", commit queue: " + gitController.getCommitQueue();
+		}
+
+		if (gitController.getMaintenance() != null)
+		{
+			info += ", maintenance: " + gitController.getMaintenance();
+		}
+
+		info += ", metrics: " + metrics;
+
+		return info;
 	}
 
 	private File getAttachmentDir(Attachment attachment)
@@ -102,6 +127,21 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 	}
 
 	public void putAttachmentData(Attachment attachment, InputStream data) throws ProviderException, IOException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			doPutAttachmentData(attachment, data);
+			ok = true;
+		} finally
+		{
+			metrics.record(Metrics.Operation.PUT_ATTACHMENT_DATA, start, ok);
+		}
+	}
+
+	private void doPutAttachmentData(Attachment attachment, InputStream data) throws ProviderException, IOException
 	{
 		File dir = getAttachmentDir(attachment);
 
@@ -112,13 +152,14 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 
 		File f = getAttachmentFile(attachment);
 
-		FileUtils.copyInputStreamToFile(data, f);
-
 		PageMetaData metaData = gitUtil.getPageMetaData(attachment);
 
 		try
 		{
-			gitController.commit(dir, metaData);
+			// one pass over data writes f and the git object
+			PathChange change = gitController.commit(f, data, attachment.getSize(), metaData);
+
+			attachment.setSize(change.length);
 		} catch (GitException e)
 		{
 			throw new ProviderException(e.getMessage());
@@ -126,6 +167,22 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 	}
 
 	public InputStream getAttachmentData(Attachment attachment) throws ProviderException, IOException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			InputStream result = doGetAttachmentData(attachment);
+			ok = true;
+			return result;
+		} finally
+		{
+			metrics.record(Metrics.Operation.GET_ATTACHMENT_DATA, start, ok);
+		}
+	}
+
+	private InputStream doGetAttachmentData(Attachment attachment) throws ProviderException, IOException
 	{
 		int version = attachment.getVersion();
 		
@@ -139,11 +196,17 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 
 			return is;
 		}
-		
+
+		String path = gitController.getPath(f);
+
+		if (version < 1 || version > gitController.getVersionCount(path))
+		{
+			throw new ProviderException("no version " + version + " of " + attachment.getName());
+		}
+
 		try
 		{
-			String name = String.format("%s/%s",  attachment.getParentName(), attachment.getFileName());
-			is = gitController.readHistoryObject(name, version);
+			is = gitController.readHistoryObject(path, version);
 			return is;
 		} catch (GitException e)
 		{
@@ -152,6 +215,22 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 	}
 
 	public Collection listAttachments(WikiPage page) throws ProviderException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			Collection result = doListAttachments(page);
+			ok = true;
+			return result;
+		} finally
+		{
+			metrics.record(Metrics.Operation.LIST_ATTACHMENTS, start, ok);
+		}
+	}
+
+	private Collection doListAttachments(WikiPage page) throws ProviderException
 	{
 		Collection<Attachment> result = new ArrayList<Attachment>();
 
@@ -181,7 +260,12 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 		{
 			String name = TextUtil.urlDecodeUTF8(f.getName());
 			Attachment attachment = getAttachmentInfo(page, name, WikiProvider.LATEST_VERSION);
-			result.add(attachment);
+
+			// files that were never committed have no history
+			if (attachment != null)
+			{
+				result.add(attachment);
+			}
 		}
 
 		return result;
@@ -189,36 +273,109 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 
 	public Collection findAttachments(QueryItem[] query)
 	{
-		return null;
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			Collection result = doFindAttachments(query);
+			ok = true;
+			return result;
+		} finally
+		{
+			metrics.record(Metrics.Operation.FIND_ATTACHMENTS, start, ok);
+		}
 	}
 
-	public List listAllChanged(Date timestamp) throws ProviderException
+	private Collection doFindAttachments(QueryItem[] query)
 	{
-		File[] directoriesWithAttachments = attachmentDirectory.listFiles(new FilenameFilter()
+		List<Attachment> result = new ArrayList<Attachment>();
+
+		try
 		{
-			public boolean accept(File dir, String name)
+			for (SearchIndex.Hit hit : GitUtil.search(gitController, query, false))
 			{
-				return !GIT_DIR.equals(name);
+				// attachments are stored as <page>/<file>
+				String[] names = hit.path.split("/");
+				if (names.length != 2)
+				{
+					continue;
+				}
+
+				WikiPage page = new WikiPage(engine, TextUtil.urlDecodeUTF8(names[0]));
+
+				Attachment attachment = getAttachmentInfo(page, TextUtil.urlDecodeUTF8(names[1]),
+						WikiProvider.LATEST_VERSION);
+
+				if (attachment != null)
+				{
+					result.add(attachment);
+				}
 			}
-		});
+		} catch (GitException e)
+		{
+			log.error(e);
+		} catch (ProviderException e)
+		{
+			log.error(e);
+		}
 
-		ArrayList<Attachment> result = new ArrayList<Attachment>();
+		return result;
+	}
 
-		for (File d : directoriesWithAttachments)
+	public List listAllChanged(Date timestamp) throws ProviderException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			List result = doListAllChanged(timestamp);
+			ok = true;
+			return result;
+		} finally
 		{
-			String pagename = TextUtil.urlDecodeUTF8(d.getName());
+			metrics.record(Metrics.Operation.LIST_ALL_CHANGED, start, ok);
+		}
+	}
 
-			Collection c = listAttachments(new WikiPage(engine, pagename));
+	private List doListAllChanged(Date timestamp) throws ProviderException
+	{
+		List<PageMetaData> changes;
+		try
+		{
+			changes = gitController.getChangedSince(timestamp);
+		} catch (GitException e)
+		{
+			throw new ProviderException(e.getMessage());
+		}
+
+		ArrayList<Attachment> result = new ArrayList<Attachment>();
 
-			for (Iterator it = c.iterator(); it.hasNext();)
+		for (PageMetaData metaData : changes)
+		{
+			if (metaData.changeType == DiffEntry.ChangeType.DELETE)
 			{
-				Attachment attachment = (Attachment) it.next();
+				continue;
+			}
 
-				if (attachment.getLastModified().after(timestamp))
-				{
-					result.add(attachment);
-				}
+			// attachments are stored as <page>/<file>
+			String[] names = metaData.fileName.split("/");
+			if (names.length != 2)
+			{
+				continue;
 			}
+
+			Attachment attachment = new Attachment(engine, TextUtil.urlDecodeUTF8(names[0]),
+					TextUtil.urlDecodeUTF8(names[1]));
+
+			attachment.setVersion(metaData.version);
+			attachment.setAttribute(WikiPage.CHANGENOTE, metaData.changenote);
+			attachment.setAuthor(metaData.author);
+			attachment.setLastModified(metaData.commitTime);
+			attachment.setSize(metaData.fileSize);
+
+			result.add(attachment);
 		}
 
 		Collections.sort(result, new PageTimeComparator());
@@ -227,39 +384,70 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 	}
 
 	public Attachment getAttachmentInfo(WikiPage page, String name, int version) throws ProviderException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			Attachment result = doGetAttachmentInfo(page, name, version);
+			ok = true;
+			return result;
+		} finally
+		{
+			metrics.record(Metrics.Operation.GET_ATTACHMENT_INFO, start, ok);
+		}
+	}
+
+	private Attachment doGetAttachmentInfo(WikiPage page, String name, int version) throws ProviderException
 	{
 
 		Attachment attachment = new Attachment(engine, page.getName(), name);
 
+		// read just the one version rather than the whole history
+		int offset = 0;
+		if (version != WikiProvider.LATEST_VERSION)
+		{
+			offset = gitController.getVersionCount(gitController.getPath(getAttachmentFile(attachment))) - version;
+			if (offset < 0)
+			{
+				return null;
+			}
+		}
+
 		List<Attachment> versions;
 		try
 		{
-			versions = getVersionHistoryExc(attachment);
+			versions = getVersionHistoryExc(attachment, offset, 1);
 		} catch (GitException e)
 		{
 			throw new ProviderException(e.getMessage());
 		}
 
-		if (version == WikiProvider.LATEST_VERSION)
-		{
-			return (Attachment) versions.get(0);
-		}
+		return versions.isEmpty() ? null : versions.get(0);
+	}
 
-		for (Attachment a : versions)
+	public List getVersionHistory(Attachment attachment)
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
 		{
-			if (a.getVersion() == version)
-			{
-				return a;
-			}
+			List result = doGetVersionHistory(attachment);
+			ok = true;
+			return result;
+		} finally
+		{
+			metrics.record(Metrics.Operation.GET_VERSION_HISTORY, start, ok);
 		}
-		return null;
 	}
 
-	public List getVersionHistory(Attachment attachment)
+	private List doGetVersionHistory(Attachment attachment)
 	{
 		try
 		{
-			List versionHistory = getVersionHistoryExc(attachment);
+			List versionHistory = getVersionHistoryExc(attachment, 0, Integer.MAX_VALUE);
 			return versionHistory;
 		} catch (GitException e)
 		{
@@ -269,30 +457,56 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 		return null;
 	}
 
-	private List<Attachment> getVersionHistoryExc(Attachment attachment) throws GitException
+	/**
+	 * Reads a window of the history of an attachment. Its cost depends on
+	 * limit and not on the number of versions of the attachment.
+	 *
+	 * @param offset
+	 *            the number of newest versions to skip
+	 * @param limit
+	 *            the maximum number of versions to return
+	 * @return the versions, newest first
+	 */
+	public List<Attachment> getVersionHistory(Attachment attachment, int offset, int limit) throws ProviderException
 	{
-		log.debug("getVersionHistory: " + attachment);
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			List<Attachment> result = getVersionHistoryExc(attachment, offset, limit);
+			ok = true;
+			return result;
+		} catch (GitException e)
+		{
+			throw new ProviderException(e.getMessage());
+		} finally
+		{
+			metrics.record(Metrics.Operation.GET_VERSION_WINDOW, start, ok);
+		}
+	}
+
+	private List<Attachment> getVersionHistoryExc(Attachment attachment, int offset, int limit) throws GitException
+	{
+		log.debug("getVersionHistory: " + attachment + " " + offset + " " + limit);
 
 		String pageName = attachment.getParentName();
 
 		File file = getAttachmentFile(attachment);
 
-		String fileName = String.format("%s/%s", TextUtil.urlEncodeUTF8(pageName),
-				TextUtil.urlEncodeUTF8(file.getName()));
+		String fileName = gitController.getPath(file);
 
-		List<PageMetaData> metaDataList = gitController.getVersionHistory(fileName, true);
+		List<PageMetaData> metaDataList = gitController.getVersionHistory(fileName, offset, limit, true);
 
 		List<Attachment> attachmentVersions = new ArrayList<Attachment>(metaDataList.size());
 
-		int v = metaDataList.size();
-
 		for (PageMetaData metaData : metaDataList)
 		{
 			Attachment attachmentVersion = new Attachment(engine, pageName, attachment.getFileName());
 
 			attachmentVersions.add(attachmentVersion);
 
-			attachmentVersion.setVersion(v--);
+			attachmentVersion.setVersion(metaData.version);
 
 			attachmentVersion.setAttribute(WikiPage.CHANGENOTE, metaData.changenote);
 
@@ -310,15 +524,29 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 
 	public void deleteVersion(Attachment att) throws ProviderException
 	{
-		// TODO Auto-generated method stub
+		log.debug("deleteVersion: " + att.getName() + " " + att.getVersion());
 
+		throw new ProviderException("not supported");
 	}
 
 	public void deleteAttachment(Attachment attachment) throws ProviderException
 	{
-		PageMetaData metaData = gitUtil.getPageMetaData(attachment);
+		long start = metrics.start();
+		boolean ok = false;
 
-		File attachmentDir = getAttachmentDir(attachment);
+		try
+		{
+			doDeleteAttachment(attachment);
+			ok = true;
+		} finally
+		{
+			metrics.record(Metrics.Operation.DELETE_ATTACHMENT, start, ok);
+		}
+	}
+
+	private void doDeleteAttachment(Attachment attachment) throws ProviderException
+	{
+		PageMetaData metaData = gitUtil.getPageMetaData(attachment);
 
 		File f = getAttachmentFile(attachment);
 
@@ -330,7 +558,7 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 
 		try
 		{
-			gitController.commit(attachmentDir, metaData);
+			gitController.commit(f, metaData);
 		} catch (GitException e)
 		{
 			throw new ProviderException(e.getMessage());
@@ -338,6 +566,21 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 	}
 
 	public void moveAttachmentsForPage(String oldParent, String newParent) throws ProviderException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			doMoveAttachmentsForPage(oldParent, newParent);
+			ok = true;
+		} finally
+		{
+			metrics.record(Metrics.Operation.MOVE_ATTACHMENTS_FOR_PAGE, start, ok);
+		}
+	}
+
+	private void doMoveAttachmentsForPage(String oldParent, String newParent) throws ProviderException
 	{
 		WikiPage oldpage = engine.getPage(oldParent);
 
@@ -348,20 +591,29 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 
 		File[] files = attachmentDirOld.listFiles();
 
-		try
+		if (files == null || files.length == 0)
 		{
-			for (File f : files)
+			return;
+		}
+
+		// one rename for all attachments, unless the new page has some already
+		if (attachmentDirNew.exists() || !attachmentDirOld.renameTo(attachmentDirNew))
+		{
+			try
+			{
+				for (File f : files)
+				{
+					FileUtils.moveFileToDirectory(f, attachmentDirNew, true);
+				}
+			} catch (IOException e)
 			{
-				FileUtils.moveFileToDirectory(f, attachmentDirNew, false);
+				throw new ProviderException(e.getMessage());
 			}
-		} catch (IOException e)
-		{
-			throw new ProviderException(e.getMessage());
 		}
 
 		try
 		{
-			gitController.commit(attachmentDirectory, metaData);
+			gitController.move(attachmentDirOld, attachmentDirNew, metaData);
 		} catch (GitException e)
 		{
 			throw new ProviderException(e.getMessage());
@@ -369,4 +621,18 @@ public class GitAttachmentProvider implements WikiAttachmentProvider
 
 	}
 
+	public void actionPerformed(WikiEvent event)
+	{
+		if (event instanceof WikiEngineEvent && event.getType() == WikiEngineEvent.SHUTDOWN)
+		{
+			try
+			{
+				gitController.close();
+			} catch (IOException e)
+			{
+				log.error(e);
+			}
+		}
+	}
+
 }
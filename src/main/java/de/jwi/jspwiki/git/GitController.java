@@ -17,43 +17,195 @@
 
 package de.jwi.jspwiki.git;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
 
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.api.errors.NoFilepatternException;
-import org.eclipse.jgit.api.errors.NoHeadException;
-import org.eclipse.jgit.errors.CorruptObjectException;
-import org.eclipse.jgit.errors.IncorrectObjectTypeException;
-import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.LockFailedException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.CommitTimeRevFilter;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.io.TeeInputStream;
 
 public class GitController
 {
+	private static final Logger log = Logger.getLogger(GitController.class);
+
 	private File baseDirectory;
 
 	private Git git;
 
 	private Repository repository;
 
+	private HistoryIndex historyIndex;
+
+	private CommitQueue commitQueue;
+
+	/**
+	 * sync (the default), async or bounded
+	 */
+	public static final String PROP_COMMITMODE = "jspwiki.gitProvider.commitMode";
+
+	/**
+	 * number of queued commits after which saves wait, in bounded mode
+	 */
+	public static final String PROP_COMMITMAXLAG = "jspwiki.gitProvider.commitMaxLag";
+
+	public static final String COMMITMODE_SYNC = "sync";
+
+	public static final String COMMITMODE_ASYNC = "async";
+
+	public static final String COMMITMODE_BOUNDED = "bounded";
+
+	public static final int DEFAULT_COMMITMAXLAG = 100;
+
+	/**
+	 * seconds between two looks at the object counts, 0 turns maintenance off
+	 */
+	public static final String PROP_MAINTENANCEINTERVAL = "jspwiki.gitProvider.maintenanceInterval";
+
+	/**
+	 * number of loose objects above which the repository is repacked
+	 */
+	public static final String PROP_MAXLOOSEOBJECTS = "jspwiki.gitProvider.maxLooseObjects";
+
+	/**
+	 * number of pack files above which the repository is repacked
+	 */
+	public static final String PROP_MAXPACKFILES = "jspwiki.gitProvider.maxPackFiles";
+
+	public static final int DEFAULT_MAINTENANCEINTERVAL = 600;
+
+	public static final int DEFAULT_MAXLOOSEOBJECTS = 6700;
+
+	public static final int DEFAULT_MAXPACKFILES = 50;
+
+	/**
+	 * maximum number of characters of change notes held in memory
+	 */
+	public static final String PROP_CHANGENOTECACHESIZE = "jspwiki.gitProvider.changenoteCacheSize";
+
+	public static final int DEFAULT_CHANGENOTECACHESIZE = 4 * 1024 * 1024;
+
+	private String commitMode = COMMITMODE_SYNC;
+
+	private int commitMaxLag = DEFAULT_COMMITMAXLAG;
+
+	private BlobCache blobCache;
+
+	private SearchIndex searchIndex;
+
+	private int maintenanceInterval = DEFAULT_MAINTENANCEINTERVAL;
+
+	private int maxLooseObjects = DEFAULT_MAXLOOSEOBJECTS;
+
+	private int maxPackFiles = DEFAULT_MAXPACKFILES;
+
+	private RepositoryMaintenance maintenance;
+
+	private int changenoteCacheSize = DEFAULT_CHANGENOTECACHESIZE;
+
+	/**
+	 * commit messages by commit id, read when a version history asks for them
+	 */
+	private BoundedCache<ObjectId, String> changenoteCache;
+
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * held while the index and HEAD are written, fair so that commits are
+	 * recorded in the order in which they were made
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock(true);
+
+	private static final int MAX_RECORD_ATTEMPTS = 5;
+
+	/**
+	 * milliseconds before the first retry, doubled for each further one
+	 */
+	private static final long RETRY_DELAY = 20;
+
+	private static final int MAX_RESOLVE_ATTEMPTS = 5;
+
+	private static final int FILE_LOCKS = 64;
+
+	/**
+	 * striped by path, held while a file is written and committed
+	 */
+	private final Object[] fileLocks = new Object[FILE_LOCKS];
+
 	public GitController(File baseDirectory)
 	{
 		super();
 		this.baseDirectory = baseDirectory;
+
+		for (int i = 0; i < FILE_LOCKS; i++)
+		{
+			fileLocks[i] = new Object();
+		}
+	}
+
+	public void configure(Properties properties)
+	{
+		commitMode = properties.getProperty(PROP_COMMITMODE, COMMITMODE_SYNC).trim();
+
+		blobCache = BlobCache.getInstance(properties);
+
+		commitMaxLag = getIntProperty(properties, PROP_COMMITMAXLAG, DEFAULT_COMMITMAXLAG);
+
+		maintenanceInterval = getIntProperty(properties, PROP_MAINTENANCEINTERVAL, DEFAULT_MAINTENANCEINTERVAL);
+		maxLooseObjects = getIntProperty(properties, PROP_MAXLOOSEOBJECTS, DEFAULT_MAXLOOSEOBJECTS);
+		maxPackFiles = getIntProperty(properties, PROP_MAXPACKFILES, DEFAULT_MAXPACKFILES);
+
+		changenoteCacheSize = getIntProperty(properties, PROP_CHANGENOTECACHESIZE, DEFAULT_CHANGENOTECACHESIZE);
+	}
+
+	private static int getIntProperty(Properties properties, String key, int defaultValue)
+	{
+		String value = properties.getProperty(key);
+
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
 	}
 
 	public void init() throws IOException
@@ -61,137 +213,1265 @@ public class GitController
 		git = Git.open(baseDirectory);
 
 		repository = git.getRepository();
+
+		if (blobCache == null)
+		{
+			blobCache = BlobCache.getInstance(new Properties());
+		}
+
+		changenoteCache = new BoundedCache<ObjectId, String>(changenoteCacheSize, new BoundedCache.Weigher<String>()
+		{
+			public long weigh(String value)
+			{
+				return value.length();
+			}
+		});
+
+		historyIndex = new HistoryIndex(metrics);
+
+		historyIndex.open(repository);
+
+		searchIndex = new SearchIndex(metrics);
+
+		searchIndex.start(repository, baseDirectory.getName());
+
+		if (COMMITMODE_ASYNC.equals(commitMode))
+		{
+			commitQueue = new CommitQueue(this, Integer.MAX_VALUE);
+		} else if (COMMITMODE_BOUNDED.equals(commitMode))
+		{
+			commitQueue = new CommitQueue(this, commitMaxLag);
+		} else if (!COMMITMODE_SYNC.equals(commitMode))
+		{
+			throw new IOException("unknown " + PROP_COMMITMODE + ": " + commitMode);
+		}
+
+		if (commitQueue != null)
+		{
+			commitQueue.start(baseDirectory.getName());
+		}
+
+		if (maintenanceInterval > 0 && repository instanceof FileRepository)
+		{
+			maintenance = new RepositoryMaintenance((FileRepository) repository, maintenanceInterval * 1000L,
+					maxLooseObjects, maxPackFiles);
+			maintenance.start(baseDirectory.getName());
+		}
+
+		metrics.register(baseDirectory.getPath());
 	}
 
-	public void commit(File f, PageMetaData metaData) throws GitException
+	/**
+	 * Waits until all queued commits are recorded and searchable.
+	 *
+	 * @throws GitException
+	 *             if a queued commit is failing
+	 */
+	public void flush() throws InterruptedException, GitException
 	{
-		String name = f.getName();
+		if (commitQueue != null)
+		{
+			commitQueue.flush();
+		}
 
-		String message = metaData.changenote;
+		searchIndex.awaitUpdate();
+	}
 
-		if (message == null)
+	public Metrics getMetrics()
+	{
+		return metrics;
+	}
+
+	public BoundedCache<ObjectId, String> getChangenoteCache()
+	{
+		return changenoteCache;
+	}
+
+	public BlobCache getBlobCache()
+	{
+		return blobCache;
+	}
+
+	/**
+	 * @return the repository maintenance, or null if it is turned off
+	 */
+	public RepositoryMaintenance getMaintenance()
+	{
+		return maintenance;
+	}
+
+	/**
+	 * @return the commit queue, or null if commits are synchronous
+	 */
+	public CommitQueue getCommitQueue()
+	{
+		return commitQueue;
+	}
+
+	/**
+	 * Records all queued commits, saves the history index and releases the
+	 * repository.
+	 *
+	 * @throws IOException
+	 *             also if a queued commit is failing, the indexes are saved
+	 *             with the commits recorded so far
+	 */
+	public void close() throws IOException
+	{
+		try
 		{
-			message = "no commit message";
+			if (maintenance != null)
+			{
+				maintenance.close();
+			}
+
+			GitException failure = null;
+			if (commitQueue != null)
+			{
+				try
+				{
+					commitQueue.close();
+				} catch (GitException e)
+				{
+					failure = e;
+				}
+			}
+
+			searchIndex.close();
+
+			historyIndex.save();
+
+			searchIndex.save();
+
+			if (failure != null)
+			{
+				throw new IOException("queued commits of " + baseDirectory + " not recorded", failure);
+			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+
+			throw new IOException("interrupted while stopping the background threads");
+		} finally
+		{
+			metrics.unregister();
+
+			// a commit made without the queue may still be running
+			writeLock.lock();
+			try
+			{
+				repository.close();
+			} finally
+			{
+				writeLock.unlock();
+			}
 		}
+	}
 
-		PersonIdent ident = new PersonIdent(metaData.author, metaData.email, metaData.commitTime, TimeZone.getDefault());
+	/**
+	 * @return the path of f relative to the work tree, as used in the history
+	 */
+	public String getPath(File f)
+	{
+		String base = repository.getWorkTree().getAbsolutePath();
+		String path = f.getAbsolutePath();
 
-		try
+		if (path.startsWith(base))
+		{
+			path = path.substring(base.length());
+		}
+
+		path = path.replace(File.separatorChar, '/');
+
+		if (path.startsWith("/"))
 		{
-			git.add().addFilepattern(name).call();
+			path = path.substring(1);
+		}
+
+		return path;
+	}
+
+	public void commit(File f, PageMetaData metaData) throws GitException
+	{
+		commit(Collections.singletonList(f), metaData);
+	}
 
-			git.commit().setMessage(message).setAuthor(ident).setCommitter(ident).call();
+	/**
+	 * Commits the current state of files, without scanning the rest of the
+	 * work tree. A file that does not exist is removed, a directory is
+	 * compared with the index and only its changed files are hashed.
+	 *
+	 * The content of the files is always stored before this method returns.
+	 * With a commit queue, the commit itself is recorded later, in the order
+	 * in which the changes were made.
+	 */
+	public void commit(List<File> files, PageMetaData metaData) throws GitException
+	{
+		List<PathChange> changes;
 
-		} catch (NoFilepatternException e)
+		try
+		{
+			changes = prepare(files);
+		} catch (IOException e)
 		{
 			throw new GitException(e);
-		} catch (GitAPIException e)
+		}
+
+		commitChanges(changes, metaData);
+	}
+
+	/**
+	 * Commits the move of a file or a directory that was already renamed from
+	 * from to to on disk, as a single commit that deletes the old paths and
+	 * adds the new ones.
+	 *
+	 * The new paths reuse the blob ids of the index entries of the old paths,
+	 * nothing is read or hashed. Only a file whose length or modification time
+	 * differs from the index entry, such as one whose commit is still queued,
+	 * is hashed.
+	 */
+	public void move(File from, File to, PageMetaData metaData) throws GitException
+	{
+		List<PathChange> changes;
+
+		try
+		{
+			changes = prepareMove(from, to);
+		} catch (IOException e)
 		{
 			throw new GitException(e);
 		}
+
+		commitChanges(changes, metaData);
 	}
 
-	public List<PageMetaData> getVersionHistory(String fileName, boolean readFileSize) throws GitException
+	/**
+	 * Writes data to f and commits it, see
+	 * {@link #store(File, InputStream, long)}. Writes of the same file are
+	 * serialized, so each commit has the content its caller wrote and the
+	 * file is left with the content of the last one.
+	 *
+	 * Sets fileSize, blobId and version of metaData.
+	 *
+	 * @return the committed change
+	 */
+	public PathChange commit(File f, InputStream data, long length, PageMetaData metaData) throws GitException
 	{
-		List<PageMetaData> metaDataList = new ArrayList<PageMetaData>();
+		synchronized (fileLocks[(getPath(f).hashCode() & 0x7fffffff) % FILE_LOCKS])
+		{
+			// a save that would be refused must not change the file
+			if (commitQueue != null)
+			{
+				commitQueue.checkOpen();
+			}
+
+			PathChange change;
+			try
+			{
+				change = store(f, data, length);
+			} catch (IOException e)
+			{
+				throw new GitException(e);
+			}
+
+			metaData.fileSize = change.length;
+			metaData.blobId = change.blobId;
+
+			commitChanges(Collections.singletonList(change), metaData);
+
+			metaData.version = getVersionCount(change.path);
+
+			return change;
+		}
+	}
+
+	/**
+	 * Commits changes whose content is already in the object database, see
+	 * {@link #store(File, InputStream, long)}.
+	 */
+	public void commitChanges(List<PathChange> changes, PageMetaData metaData) throws GitException
+	{
+		long start = metrics.start();
+		boolean ok = false;
 
 		try
 		{
-			Iterator<RevCommit> it = git.log().addPath(fileName).call().iterator();
-			while (it.hasNext())
+			if (commitQueue == null)
 			{
-				RevCommit rev = it.next();
-				PageMetaData metaData = new PageMetaData();
-				metaDataList.add(metaData);
+				record(changes, metaData);
+				ok = true;
+				return;
+			}
 
-				String changenote = rev.getFullMessage();
-				PersonIdent authorIdent = rev.getAuthorIdent();
-				int commitTime = rev.getCommitTime(); // seconds since the epoch
-				long ms = (long) commitTime * 1000;
+			try
+			{
+				commitQueue.put(changes, metaData);
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
 
-				metaData.fileName = fileName;
-				metaData.author = authorIdent.getName();
-				metaData.changenote = changenote;
-				metaData.commitTime = new Date(ms);
-				
-				if (readFileSize)
+				throw new GitException("interrupted while waiting for the commit queue", e);
+			}
+
+			ok = true;
+		} finally
+		{
+			metrics.record(Metrics.Operation.GIT_COMMIT, start, ok);
+		}
+	}
+
+	/**
+	 * Stores the content of the changed files in the object database.
+	 */
+	private List<PathChange> prepare(List<File> files) throws IOException
+	{
+		List<PathChange> changes = new ArrayList<PathChange>();
+
+		ObjectInserter inserter = repository.newObjectInserter();
+
+		try
+		{
+			for (File f : files)
+			{
+				String path = getPath(f);
+
+				if (f.isDirectory())
+				{
+					addDirectoryChanges(changes, inserter, repository.readDirCache(), path, f);
+				} else
 				{
-					metaData.fileSize = readObjectSize(rev, fileName);
+					changes.add(insert(inserter, path, f));
 				}
 			}
 
-			return metaDataList;
-		} catch (Exception e)
+			inserter.flush();
+		} finally
 		{
-			throw new GitException(e);
-		} 	}
+			inserter.close();
+		}
+
+		return changes;
+	}
 
-	private long readObjectSize(RevCommit revCommit, String fileName) throws MissingObjectException, IncorrectObjectTypeException, CorruptObjectException, IOException
+	/**
+	 * Applies changes to the index and commits the resulting tree on top of
+	 * HEAD.
+	 *
+	 * Writers are serialized by the write lock, in the order in which they
+	 * arrive. Readers do not take it: commits and trees are immutable and the
+	 * history index replaces its lists instead of changing them. If the index
+	 * or HEAD is locked by another process, the commit is retried a few times.
+	 */
+	void record(List<PathChange> changes, PageMetaData metaData) throws GitException
 	{
-		ObjectReader reader = null;
-		
-		try
+		String message = metaData.changenote;
+
+		if (message == null)
 		{
-			reader = repository.newObjectReader();
+			message = "no commit message";
+		}
 
-			RevTree tree = revCommit.getTree();
+		PersonIdent ident = new PersonIdent(metaData.author, metaData.email, metaData.commitTime, TimeZone.getDefault());
 
-			TreeWalk treewalk = TreeWalk.forPath(reader, fileName, tree);
-			// open object
-			ObjectLoader loader = reader.open(treewalk.getObjectId(0));
-			
-			long size = loader.getSize();
+		long start = metrics.start();
+		boolean ok = false;
 
-			return size;
-		} finally
+		writeLock.lock();
+		try
 		{
-			if (reader != null)
+			for (int attempt = 1;; attempt++)
 			{
-				reader.close();
+				if (recordOnce(changes, message, ident))
+				{
+					ok = true;
+
+					searchIndex.requestUpdate();
+					return;
+				}
+
+				if (attempt == MAX_RECORD_ATTEMPTS)
+				{
+					throw new GitException("index or HEAD of " + baseDirectory + " still locked after " + attempt
+							+ " attempts");
+				}
+
+				log.warn("index or HEAD of " + baseDirectory + " locked, retrying");
+
+				metrics.increment(Metrics.Counter.COMMIT_RETRIES);
+
+				Thread.sleep(RETRY_DELAY << (attempt - 1));
 			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+
+			throw new GitException("interrupted while retrying a commit", e);
+		} finally
+		{
+			writeLock.unlock();
+
+			metrics.record(Metrics.Operation.GIT_RECORD, start, ok);
 		}
 	}
-	
-	public InputStream readHistoryObject(String name, int version) throws GitException
+
+	/**
+	 * @return false if the index or HEAD was locked by someone else, nothing
+	 *         has been changed then
+	 */
+	private boolean recordOnce(List<PathChange> changes, String message, PersonIdent ident) throws GitException
 	{
-		ObjectReader reader = null;
+		DirCache dirCache = null;
+		ObjectInserter inserter = repository.newObjectInserter();
+
 		try
 		{
-			RevCommit revCommit;
+			try
+			{
+				dirCache = repository.lockDirCache();
+			} catch (LockFailedException e)
+			{
+				return false;
+			}
 
-			List<RevCommit> commits = new ArrayList<RevCommit>();
+			DirCacheEditor editor = dirCache.editor();
 
-			Iterator<RevCommit> it = git.log().addPath(name).call().iterator();
-			while (it.hasNext())
+			for (PathChange change : changes)
 			{
-				RevCommit r = it.next();
-				commits.add(r);
+				editor.add(change.toPathEdit());
 			}
 
-			revCommit = commits.get(commits.size() - version);
+			editor.finish();
 
-			reader = repository.newObjectReader();
+			ObjectId headId = repository.resolve(Constants.HEAD + "^{commit}");
 
-			RevTree tree = revCommit.getTree();
+			CommitBuilder commitBuilder = new CommitBuilder();
+			commitBuilder.setTreeId(dirCache.writeTree(inserter));
+			if (headId != null)
+			{
+				commitBuilder.setParentId(headId);
+			}
+			commitBuilder.setAuthor(ident);
+			commitBuilder.setCommitter(ident);
+			commitBuilder.setMessage(message);
 
-			TreeWalk treewalk = TreeWalk.forPath(reader, name, tree);
-			// open object
-			ObjectLoader loader = reader.open(treewalk.getObjectId(0));
+			ObjectId commitId = inserter.insert(commitBuilder);
+			inserter.flush();
 
-			InputStream is = loader.openStream();
-			
-			return is;
-		} catch (Exception e)
+			RefUpdate ru = repository.updateRef(Constants.HEAD);
+			ru.setNewObjectId(commitId);
+			ru.setExpectedOldObjectId(headId != null ? headId : ObjectId.zeroId());
+			ru.setRefLogIdent(ident);
+			ru.setRefLogMessage((headId == null ? "commit (initial): " : "commit: ") + firstLine(message), false);
+
+			RefUpdate.Result rc = ru.forceUpdate();
+			switch (rc)
+			{
+			case NEW:
+			case FORCED:
+			case FAST_FORWARD:
+				break;
+			case LOCK_FAILURE:
+				// HEAD is locked or has moved, the commit object is left unreferenced
+				return false;
+			default:
+				throw new GitException("could not update HEAD: " + rc);
+			}
+
+			dirCache.write();
+			if (!dirCache.commit())
+			{
+				throw new GitException("could not write the index");
+			}
+
+			historyIndex.update(repository, commitId, changes);
+
+			return true;
+		} catch (IOException e)
 		{
 			throw new GitException(e);
 		} finally
 		{
-			if (reader != null)
+			inserter.close();
+
+			if (dirCache != null)
 			{
-				reader.close();
+				dirCache.unlock();
 			}
 		}
+	}
+
+	/**
+	 * Writes data to f and stores it in the object database in the same pass
+	 * over data. If length is not known (negative) or turns out to be wrong,
+	 * the object is hashed from f after it has been written.
+	 *
+	 * @return the change to commit, with the blob id and length of the data
+	 */
+	public PathChange store(File f, InputStream data, long length) throws IOException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		ObjectInserter inserter = repository.newObjectInserter();
+
+		try
+		{
+			ObjectId blobId = null;
+
+			OutputStream out = new FileOutputStream(f);
+			try
+			{
+				if (length >= 0)
+				{
+					TeeInputStream tee = new TeeInputStream(data, out);
+					try
+					{
+						blobId = inserter.insert(Constants.OBJ_BLOB, length, tee);
+
+						if (tee.read() != -1)
+						{
+							// longer than announced, copy the rest and hash the file
+							blobId = null;
+							copy(tee, null);
+						}
+					} catch (EOFException e)
+					{
+						// shorter than announced, the file has all of it
+						blobId = null;
+					}
+				} else
+				{
+					copy(data, out);
+				}
+			} finally
+			{
+				out.close();
+			}
+
+			if (blobId != null && f.length() != length)
+			{
+				// small objects are read in one buffer whatever length was
+				// announced, the file has what was actually sent
+				blobId = null;
+			}
 
+			String path = getPath(f);
+
+			PathChange change;
+			if (blobId == null)
+			{
+				change = insert(inserter, path, f);
+			} else
+			{
+				change = new PathChange(path, blobId, length, f.lastModified());
+			}
+
+			inserter.flush();
+
+			ok = true;
+			return change;
+		} finally
+		{
+			inserter.close();
+
+			metrics.record(Metrics.Operation.GIT_STORE, start, ok);
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException
+	{
+		byte[] buf = new byte[8192];
+
+		int n;
+		while ((n = in.read(buf)) != -1)
+		{
+			if (out != null)
+			{
+				out.write(buf, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * Adds the versions of a queued commit to the history, and the moves it
+	 * makes, so the history of a moved path is complete before the commit is
+	 * recorded.
+	 */
+	void addPending(List<PathChange> changes, PageMetaData metaData)
+	{
+		for (PathChange change : changes)
+		{
+			historyIndex.addPending(change.path, change.blobId, metaData.author, metaData.commitTime.getTime(),
+					change.length, metaData.changenote);
+		}
+
+		for (PathChange change : changes)
+		{
+			if (change.renamedFrom != null)
+			{
+				historyIndex.addPendingRename(change.path, change.renamedFrom);
+			}
+		}
+	}
+
+	void discardPending(List<PathChange> changes)
+	{
+		historyIndex.discardPending(changes);
+	}
+
+	private PathChange insert(ObjectInserter inserter, String path, File f) throws IOException
+	{
+		if (!f.exists())
+		{
+			return PathChange.delete(path);
+		}
+
+		long length = f.length();
+		long lastModified = f.lastModified();
+		ObjectId blobId;
+
+		InputStream in = new FileInputStream(f);
+		try
+		{
+			blobId = inserter.insert(Constants.OBJ_BLOB, length, in);
+		} finally
+		{
+			in.close();
+		}
+
+		return new PathChange(path, blobId, length, lastModified);
+	}
+
+	private List<PathChange> prepareMove(File from, File to) throws IOException
+	{
+		String fromPath = getPath(from);
+		String toPath = getPath(to);
+
+		DirCache dirCache = repository.readDirCache();
+
+		Map<String, File> onDisk = new HashMap<String, File>();
+		if (to.isDirectory())
+		{
+			listFiles(to, toPath, onDisk);
+		} else if (to.exists())
+		{
+			onDisk.put(toPath, to);
+		}
+
+		List<PathChange> changes = new ArrayList<PathChange>();
+		Set<String> deleted = new HashSet<String>();
+
+		ObjectInserter inserter = repository.newObjectInserter();
+
+		try
+		{
+			for (Map.Entry<String, File> e : onDisk.entrySet())
+			{
+				String path = e.getKey();
+				File f = e.getValue();
+
+				if (matches(dirCache.getEntry(path), f))
+				{
+					// was there before the move
+					continue;
+				}
+
+				String oldPath = fromPath + path.substring(toPath.length());
+				DirCacheEntry ent = dirCache.getEntry(oldPath);
+
+				// removed below, so the history of path continues oldPath
+				String renamedFrom = new File(repository.getWorkTree(), oldPath).exists() ? null : oldPath;
+
+				if (matches(ent, f))
+				{
+					changes.add(new PathChange(path, ent.getObjectId(), ent.getLength(), ent.getLastModified(),
+							renamedFrom));
+				} else
+				{
+					PathChange change = insert(inserter, path, f);
+					changes.add(new PathChange(path, change.blobId, change.length, change.lastModified, renamedFrom));
+				}
+
+				deleted.add(oldPath);
+			}
+
+			inserter.flush();
+		} finally
+		{
+			inserter.close();
+		}
+
+		if (dirCache.getEntry(fromPath) != null)
+		{
+			deleted.add(fromPath);
+		}
+
+		for (DirCacheEntry e : dirCache.getEntriesWithin(fromPath))
+		{
+			deleted.add(e.getPathString());
+		}
+
+		for (String path : deleted)
+		{
+			if (!new File(repository.getWorkTree(), path).exists())
+			{
+				changes.add(PathChange.delete(path));
+			}
+		}
+
+		return changes;
+	}
+
+	/**
+	 * @return true if ent describes f as it is on disk
+	 */
+	private static boolean matches(DirCacheEntry ent, File f)
+	{
+		return ent != null && !ent.isSmudged() && ent.getLength() == f.length()
+				&& ent.getLastModified() == f.lastModified();
+	}
+
+	/**
+	 * Hashes the files below dir that differ from their index entry in length
+	 * or modification time, and removes index entries below dir whose file is
+	 * gone. Hidden files at the top of the work tree (.git, .properties) are
+	 * skipped.
+	 */
+	private void addDirectoryChanges(List<PathChange> changes, ObjectInserter inserter, DirCache dirCache,
+			String prefix, File dir) throws IOException
+	{
+		Map<String, File> onDisk = new HashMap<String, File>();
+
+		listFiles(dir, prefix, onDisk);
+
+		for (Map.Entry<String, File> e : onDisk.entrySet())
+		{
+			if (!matches(dirCache.getEntry(e.getKey()), e.getValue()))
+			{
+				changes.add(insert(inserter, e.getKey(), e.getValue()));
+			}
+		}
+
+		for (DirCacheEntry ent : dirCache.getEntriesWithin(prefix))
+		{
+			if (!onDisk.containsKey(ent.getPathString()))
+			{
+				changes.add(PathChange.delete(ent.getPathString()));
+			}
+		}
+	}
+
+	private void listFiles(File dir, String prefix, Map<String, File> files)
+	{
+		File[] children = dir.listFiles();
+
+		if (children == null)
+		{
+			return;
+		}
+
+		for (File f : children)
+		{
+			String name = f.getName();
+
+			if (prefix.length() == 0 && name.startsWith("."))
+			{
+				continue;
+			}
+
+			String path = prefix.length() == 0 ? name : prefix + "/" + name;
+
+			if (f.isDirectory())
+			{
+				listFiles(f, path, files);
+			} else
+			{
+				files.put(path, f);
+			}
+		}
+	}
+
+	/**
+	 * Resolves HEAD for readers, which do not take the write lock. JGit can
+	 * fail with FileNotFoundException when it reads the loose branch ref while
+	 * a commit replaces it, so the lookup is repeated.
+	 *
+	 * @return the HEAD commit, null for an empty repository
+	 */
+	static ObjectId resolveHead(Repository repository) throws IOException
+	{
+		for (int attempt = 1;; attempt++)
+		{
+			try
+			{
+				return repository.resolve(Constants.HEAD);
+			} catch (FileNotFoundException e)
+			{
+				if (attempt == MAX_RESOLVE_ATTEMPTS)
+				{
+					throw e;
+				}
+
+				Thread.yield();
+			}
+		}
+	}
+
+	private static String firstLine(String message)
+	{
+		int i = message.indexOf('\n');
+
+		return i < 0 ? message : message.substring(0, i);
+	}
+
+	/**
+	 * Lists the files at the top level of the HEAD tree with the metadata of
+	 * their latest version, taken from the history index. The change note is
+	 * only set for pending versions, reading it would mean reading the latest
+	 * commit of every file.
+	 */
+	public List<PageMetaData> getHeadFiles() throws GitException
+	{
+		List<PageMetaData> metaDataList = new ArrayList<PageMetaData>();
+
+		long start = metrics.start();
+		boolean ok = false;
+
+		RevWalk walk = new RevWalk(repository);
+		TreeWalk treeWalk = new TreeWalk(walk.getObjectReader());
+
+		try
+		{
+			ObjectId headId = resolveHead(repository);
+			if (headId == null)
+			{
+				ok = true;
+				return metaDataList;
+			}
+
+			treeWalk.addTree(walk.parseCommit(headId).getTree());
+
+			while (treeWalk.next())
+			{
+				if (treeWalk.isSubtree())
+				{
+					continue;
+				}
+
+				String path = treeWalk.getPathString();
+
+				List<PathVersion> versions = historyIndex.getVersions(path);
+				if (versions.isEmpty())
+				{
+					continue;
+				}
+
+				PathVersion latest = versions.get(versions.size() - 1);
+				if (latest.isDeleted())
+				{
+					continue;
+				}
+
+				PageMetaData metaData = new PageMetaData();
+				metaDataList.add(metaData);
+
+				metaData.fileName = path;
+				metaData.version = versions.size();
+				metaData.author = latest.author;
+				metaData.commitTime = new Date(latest.commitTime);
+				metaData.fileSize = latest.size;
+				metaData.blobId = latest.blobId;
+
+				metaData.changenote = latest.changenote;
+			}
+
+			ok = true;
+			return metaDataList;
+		} catch (IOException e)
+		{
+			throw new GitException(e);
+		} finally
+		{
+			treeWalk.close();
+			walk.close();
+
+			metrics.record(Metrics.Operation.GIT_HEAD_FILES, start, ok);
+		}
+	}
+
+	/**
+	 * Answered from the history index without reading commits or allocating.
+	 *
+	 * @return the number of versions of fileName, including pending ones and
+	 *         the versions before it was renamed
+	 */
+	public int getVersionCount(String fileName)
+	{
+		return historyIndex.getVersionCount(fileName);
+	}
+
+	public List<PageMetaData> getChangedSince(Date since) throws GitException
+	{
+		return getChangedSince(since, false);
+	}
+
+	/**
+	 * Walks the commits made after since, newest first, diffing each against
+	 * its parent. The cost depends on the number of recent commits only.
+	 *
+	 * @param detectRenames
+	 *            pair up deletes and adds of the same content as renames
+	 * @return the most recent change of every path changed after since,
+	 *         newest first
+	 */
+	public List<PageMetaData> getChangedSince(Date since, boolean detectRenames) throws GitException
+	{
+		List<PageMetaData> metaDataList = new ArrayList<PageMetaData>();
+
+		Set<String> seen = new HashSet<String>();
+
+		long start = metrics.start();
+		boolean ok = false;
+
+		RevWalk walk = new RevWalk(repository);
+		TreeWalk treeWalk = new TreeWalk(walk.getObjectReader());
+
+		try
+		{
+			ObjectId headId = resolveHead(repository);
+			if (headId == null)
+			{
+				ok = true;
+				return metaDataList;
+			}
+
+			walk.markStart(walk.parseCommit(headId));
+			walk.setRevFilter(CommitTimeRevFilter.after(since));
+
+			treeWalk.setRecursive(true);
+
+			RevCommit rev;
+			while ((rev = walk.next()) != null)
+			{
+				metrics.increment(Metrics.Counter.COMMITS_WALKED);
+
+				long ms = (long) rev.getCommitTime() * 1000;
+				if (ms <= since.getTime())
+				{
+					continue;
+				}
+
+				treeWalk.reset();
+				treeWalk.setFilter(TreeFilter.ANY_DIFF);
+				if (rev.getParentCount() == 0)
+				{
+					treeWalk.addTree(new EmptyTreeIterator());
+				} else
+				{
+					treeWalk.addTree(walk.parseCommit(rev.getParent(0)).getTree());
+				}
+				treeWalk.addTree(rev.getTree());
+
+				List<DiffEntry> entries = DiffEntry.scan(treeWalk);
+				if (detectRenames)
+				{
+					RenameDetector renameDetector = new RenameDetector(repository);
+					renameDetector.addAll(entries);
+					entries = renameDetector.compute(walk.getObjectReader(), NullProgressMonitor.INSTANCE);
+				}
+
+				for (DiffEntry entry : entries)
+				{
+					DiffEntry.ChangeType changeType = entry.getChangeType();
+
+					String path = changeType == DiffEntry.ChangeType.DELETE ? entry.getOldPath()
+							: entry.getNewPath();
+
+					boolean newest = seen.add(path);
+
+					if (changeType == DiffEntry.ChangeType.RENAME)
+					{
+						// older changes of the source are superseded by the rename
+						seen.add(entry.getOldPath());
+					}
+
+					if (!newest)
+					{
+						continue;
+					}
+
+					PageMetaData metaData = new PageMetaData();
+					metaDataList.add(metaData);
+
+					metaData.fileName = path;
+					metaData.changeType = changeType;
+
+					if (changeType == DiffEntry.ChangeType.RENAME || changeType == DiffEntry.ChangeType.COPY)
+					{
+						metaData.oldFileName = entry.getOldPath();
+					}
+					metaData.author = rev.getAuthorIdent().getName();
+					metaData.changenote = rev.getFullMessage();
+					metaData.commitTime = new Date(ms);
+					metaData.blobId = entry.getNewId().toObjectId();
+
+					List<PathVersion> versions = historyIndex.getVersions(path);
+					for (int i = versions.size() - 1; i >= 0; i--)
+					{
+						if (rev.equals(versions.get(i).commitId))
+						{
+							metaData.version = i + 1;
+							metaData.fileSize = versions.get(i).size;
+							break;
+						}
+					}
+				}
+			}
+
+			ok = true;
+			return metaDataList;
+		} catch (IOException e)
+		{
+			throw new GitException(e);
+		} finally
+		{
+			treeWalk.close();
+			walk.close();
+
+			metrics.record(Metrics.Operation.GIT_CHANGED_SINCE, start, ok);
+		}
+	}
+
+	public List<PageMetaData> getVersionHistory(String fileName, boolean readFileSize) throws GitException
+	{
+		return getVersionHistory(fileName, 0, Integer.MAX_VALUE, readFileSize);
+	}
+
+	/**
+	 * Reads a window of the history of fileName. Only the commits of the
+	 * versions in the window are parsed.
+	 *
+	 * @param offset
+	 *            the number of newest versions to skip
+	 * @param limit
+	 *            the maximum number of versions to return
+	 * @return the versions, newest first
+	 */
+	public List<PageMetaData> getVersionHistory(String fileName, int offset, int limit, boolean readFileSize)
+			throws GitException
+	{
+		List<PathVersion> versions = historyIndex.getVersions(fileName);
+
+		int first = versions.size() - 1 - Math.max(offset, 0);
+		int end = Math.max(first - Math.max(limit, 0), -1);
+
+		List<PageMetaData> metaDataList = new ArrayList<PageMetaData>(Math.max(first - end, 0));
+
+		long start = metrics.start();
+		boolean ok = false;
+
+		RevWalk walk = new RevWalk(repository);
+
+		try
+		{
+			for (int i = first; i > end; i--)
+			{
+				PathVersion version = versions.get(i);
+
+				PageMetaData metaData = new PageMetaData();
+				metaDataList.add(metaData);
+
+				metaData.version = i + 1;
+
+				if (version.isPending())
+				{
+					metaData.fileName = fileName;
+					metaData.author = version.author;
+					metaData.changenote = version.changenote;
+					metaData.commitTime = new Date(version.commitTime);
+					metaData.fileSize = version.size;
+					continue;
+				}
+
+				// author and time are in the index, only the change note is read from the commit
+				metaData.fileName = fileName;
+				metaData.author = version.author;
+				metaData.changenote = getChangenote(walk, version.commitId);
+				metaData.commitTime = new Date(version.commitTime);
+
+				if (readFileSize)
+				{
+					metaData.fileSize = version.size;
+				}
+			}
+
+			ok = true;
+			return metaDataList;
+		} catch (Exception e)
+		{
+			throw new GitException(e);
+		} finally
+		{
+			walk.close();
+
+			metrics.record(Metrics.Operation.GIT_VERSION_HISTORY, start, ok);
+		}
+	}
+
+	private String getChangenote(RevWalk walk, ObjectId commitId) throws IOException
+	{
+		String changenote = changenoteCache.get(commitId);
+
+		if (changenote == null)
+		{
+			changenote = walk.parseCommit(commitId).getFullMessage();
+			metrics.increment(Metrics.Counter.COMMITS_WALKED);
+
+			changenoteCache.put(commitId, changenote);
+		}
+
+		return changenote;
+	}
+
+	/**
+	 * Searches the index as it was last updated, commits that are still
+	 * being indexed are not found yet.
+	 *
+	 * @param history
+	 *            search all versions instead of the current ones only
+	 */
+	public List<SearchIndex.Hit> search(Collection<String> required, Collection<String> forbidden,
+			Collection<String> requested, boolean history) throws GitException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			List<SearchIndex.Hit> hits;
+			if (history)
+			{
+				hits = searchIndex.searchHistory(required, forbidden, requested);
+			} else
+			{
+				hits = searchIndex.search(required, forbidden, requested);
+			}
+
+			ok = true;
+			return hits;
+		} finally
+		{
+			metrics.record(Metrics.Operation.GIT_SEARCH, start, ok);
+		}
+	}
+
+	/**
+	 * @return the newest version of fileName with the content blobId, or 0
+	 */
+	public int getVersion(String fileName, ObjectId blobId)
+	{
+		List<PathVersion> versions = historyIndex.getVersions(fileName);
+
+		for (int i = versions.size() - 1; i >= 0; i--)
+		{
+			if (blobId.equals(versions.get(i).blobId))
+			{
+				return i + 1;
+			}
+		}
+
+		return 0;
+	}
+
+	public InputStream readHistoryObject(String name, int version) throws GitException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			InputStream in = openHistoryObject(name, version);
+			ok = true;
+			return in;
+		} finally
+		{
+			metrics.record(Metrics.Operation.GIT_READ_HISTORY_OBJECT, start, ok);
+		}
+	}
+
+	private InputStream openHistoryObject(String name, int version) throws GitException
+	{
+		PathVersion pathVersion = historyIndex.getVersion(name, version);
+
+		if (pathVersion == null)
+		{
+			throw new GitException("no version " + version + " of " + name);
+		}
+
+		if (pathVersion.isDeleted())
+		{
+			throw new GitException("version " + version + " of " + name + " is deleted");
+		}
+
+		InputStream cached = blobCache.open(pathVersion.blobId);
+		if (cached != null)
+		{
+			return cached;
+		}
+
+		ObjectReader reader = repository.newObjectReader();
+		try
+		{
+			ObjectLoader loader = reader.open(pathVersion.blobId, Constants.OBJ_BLOB);
+			metrics.increment(Metrics.Counter.OBJECTS_OPENED);
+
+			// a streamed object is counted when it is opened, not as it is read
+			metrics.add(Metrics.Counter.BYTES_INFLATED, loader.getSize());
+
+			if (blobCache.isCacheable(loader.getSize()))
+			{
+				byte[] content = loader.getBytes();
+				reader.close();
+
+				blobCache.put(pathVersion.blobId, content);
+
+				return new ByteArrayInputStream(content);
+			}
+
+			// the reader must stay open until the stream has been read
+			return new ReaderInputStream(loader.openStream(), reader);
+		} catch (Exception e)
+		{
+			reader.close();
+
+			throw new GitException(e);
+		}
+	}
+
+	private static class ReaderInputStream extends FilterInputStream
+	{
+		private ObjectReader reader;
+
+		ReaderInputStream(InputStream in, ObjectReader reader)
+		{
+			super(in);
+			this.reader = reader;
+		}
+
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			} finally
+			{
+				if (reader != null)
+				{
+					reader.close();
+					reader = null;
+				}
+			}
+		}
 	}
 
 }
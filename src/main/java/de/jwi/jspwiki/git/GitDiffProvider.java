@@ -0,0 +1,180 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.apache.wiki.WikiContext;
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.api.exceptions.NoRequiredPropertyException;
+import org.apache.wiki.diff.DiffProvider;
+import org.apache.wiki.util.TextUtil;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.EditList;
+import org.eclipse.jgit.diff.HistogramDiff;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+/**
+ * DiffProvider that diffs with JGit's histogram diff.
+ *
+ * Both texts are hashed to the ids git gives them as blobs. Equal ids return
+ * at once, and the rendered diff is cached by the pair of ids, so diffing two
+ * versions again costs two hashes.
+ */
+public class GitDiffProvider implements DiffProvider
+{
+	private static final Logger log = Logger.getLogger(GitDiffProvider.class);
+
+	/**
+	 * maximum number of characters of rendered diffs held in memory
+	 */
+	public static final String PROP_DIFFCACHESIZE = "jspwiki.gitDiffProvider.cacheSize";
+
+	public static final int DEFAULT_DIFFCACHESIZE = 1024 * 1024;
+
+	private static final String CSS_DIFF_ADDED = "<tr><td class=\"diffadd\">";
+
+	private static final String CSS_DIFF_REMOVED = "<tr><td class=\"diffrem\">";
+
+	private static final String CSS_DIFF_UNCHANGED = "<tr><td class=\"diff\">";
+
+	private static final String CSS_DIFF_CLOSE = "</td></tr>\n";
+
+	private String encoding;
+
+	private BoundedCache<String, String> diffCache;
+
+	public void initialize(WikiEngine engine, Properties properties) throws NoRequiredPropertyException, IOException
+	{
+		encoding = engine.getContentEncoding();
+
+		int cacheSize = TextUtil.getIntegerProperty(properties, PROP_DIFFCACHESIZE, DEFAULT_DIFFCACHESIZE);
+
+		diffCache = new BoundedCache<String, String>(cacheSize, new BoundedCache.Weigher<String>()
+		{
+			public long weigh(String value)
+			{
+				return value.length();
+			}
+		});
+	}
+
+	public String getProviderInfo()
+	{
+		return "diff cache: " + diffCache;
+	}
+
+	public String makeDiffHtml(WikiContext context, String oldWikiText, String newWikiText)
+	{
+		if (oldWikiText == null)
+		{
+			oldWikiText = "";
+		}
+		if (newWikiText == null)
+		{
+			newWikiText = "";
+		}
+
+		byte[] oldBytes;
+		byte[] newBytes;
+		try
+		{
+			oldBytes = oldWikiText.getBytes(encoding);
+			newBytes = newWikiText.getBytes(encoding);
+		} catch (UnsupportedEncodingException e)
+		{
+			log.error(e);
+			return "";
+		}
+
+		// a Formatter holds a MessageDigest, so it is not shared between threads
+		ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+
+		ObjectId oldId = formatter.idFor(Constants.OBJ_BLOB, oldBytes);
+		ObjectId newId = formatter.idFor(Constants.OBJ_BLOB, newBytes);
+
+		if (oldId.equals(newId))
+		{
+			return "";
+		}
+
+		String key = oldId.name() + newId.name();
+
+		String html = diffCache.get(key);
+		if (html == null)
+		{
+			html = diff(new RawText(oldBytes), new RawText(newBytes));
+			diffCache.put(key, html);
+		}
+
+		return html;
+	}
+
+	private String diff(RawText a, RawText b)
+	{
+		EditList edits = new HistogramDiff().diff(RawTextComparator.DEFAULT, a, b);
+
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("<table class=\"diff\" border=\"0\" cellspacing=\"0\" cellpadding=\"0\">\n");
+
+		for (Edit edit : edits)
+		{
+			int removed = edit.getLengthA();
+			int added = edit.getLengthB();
+
+			sb.append(CSS_DIFF_UNCHANGED);
+			sb.append("At line ").append(edit.getBeginA() + 1);
+			if (removed == 0)
+			{
+				sb.append(" added ").append(added).append(added == 1 ? " line" : " lines");
+			} else if (added == 0)
+			{
+				sb.append(" removed ").append(removed).append(removed == 1 ? " line" : " lines");
+			} else
+			{
+				sb.append(" changed ").append(removed).append(removed == 1 ? " line" : " lines");
+				sb.append(" to ").append(added).append(added == 1 ? " line" : " lines");
+			}
+			sb.append(CSS_DIFF_CLOSE);
+
+			for (int i = edit.getBeginA(); i < edit.getEndA(); i++)
+			{
+				sb.append(CSS_DIFF_REMOVED).append("- ").append(TextUtil.replaceEntities(a.getString(i)))
+						.append(CSS_DIFF_CLOSE);
+			}
+
+			for (int i = edit.getBeginB(); i < edit.getEndB(); i++)
+			{
+				sb.append(CSS_DIFF_ADDED).append("+ ").append(TextUtil.replaceEntities(b.getString(i)))
+						.append(CSS_DIFF_CLOSE);
+			}
+		}
+
+		sb.append("</table>\n");
+
+		return sb.toString();
+	}
+}
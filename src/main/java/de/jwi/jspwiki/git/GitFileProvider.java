@@ -17,16 +17,16 @@
 
 package de.jwi.jspwiki.git;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -40,11 +40,17 @@ import org.apache.wiki.WikiEngine;
 import org.apache.wiki.WikiPage;
 import org.apache.wiki.api.exceptions.NoRequiredPropertyException;
 import org.apache.wiki.api.exceptions.ProviderException;
+import org.apache.wiki.event.WikiEngineEvent;
+import org.apache.wiki.event.WikiEvent;
+import org.apache.wiki.event.WikiEventListener;
+import org.apache.wiki.event.WikiEventManager;
 import org.apache.wiki.providers.AbstractFileProvider;
 import org.apache.wiki.providers.WikiPageProvider;
+import org.apache.wiki.search.QueryItem;
+import org.apache.wiki.search.SearchResult;
 import org.apache.wiki.util.TextUtil;
 
-public class GitFileProvider extends AbstractFileProvider
+public class GitFileProvider extends AbstractFileProvider implements WikiEventListener
 {
 	protected GitController gitController;
 
@@ -57,12 +63,39 @@ public class GitFileProvider extends AbstractFileProvider
 
 	File pageDirectory;
 
-	protected Map<String, List<WikiPage>> versionHistoryCache;
+	protected PageMetaDataStore pageMetaDataStore;
 
-	protected ConcurrentMap<String, Properties> pageProperties;
+	protected BoundedCache<String, CachedText> textCache;
+
+	/**
+	 * the metadata of the latest version of every page, by page name. Callers
+	 * get new WikiPage objects made from it, so they cannot change it.
+	 */
+	protected ConcurrentMap<String, PageMetaData> pageCatalog;
+
+	protected Metrics metrics;
 
 	public static final String PROPERTIES_DIR = ".properties";
 
+	/**
+	 * maximum number of characters of latest page text held in memory
+	 */
+	public static final String PROP_TEXTCACHESIZE = "jspwiki.gitFileProvider.textCacheSize";
+
+	public static final int DEFAULT_TEXTCACHESIZE = 8 * 1024 * 1024;
+
+	/**
+	 * page attribute set by getAllChangedSince, the DiffEntry.ChangeType of
+	 * the most recent change
+	 */
+	public static final String ATTR_CHANGETYPE = "gitChangeType";
+
+	/**
+	 * page attribute set by getAllChangedSince for renamed pages, the name the
+	 * page had before
+	 */
+	public static final String ATTR_OLDNAME = "gitOldName";
+
 	public void initialize(WikiEngine engine, Properties properties)
 			throws NoRequiredPropertyException, IOException, FileNotFoundException
 	{
@@ -77,13 +110,15 @@ public class GitFileProvider extends AbstractFileProvider
 
 		gitController = new GitController(pageDirectory);
 
+		gitController.configure(properties);
+
 		gitController.init();
 
-		gitUtil = new GitUtil(engine);
+		metrics = gitController.getMetrics();
 
-		versionHistoryCache = new HashMap<String, List<WikiPage>>();
+		WikiEventManager.addWikiEventListener(engine, this);
 
-		pageProperties = new ConcurrentHashMap<String, Properties>();
+		gitUtil = new GitUtil(engine);
 
 		propertiesDir = new File(m_pageDirectory, PROPERTIES_DIR);
 
@@ -96,13 +131,84 @@ public class GitFileProvider extends AbstractFileProvider
 				throw new IOException("could not create " + propertiesDir);
 			}
 		}
+
+		int textCacheSize = TextUtil.getIntegerProperty(properties, PROP_TEXTCACHESIZE, DEFAULT_TEXTCACHESIZE);
+
+		textCache = new BoundedCache<String, CachedText>(textCacheSize, new BoundedCache.Weigher<CachedText>()
+		{
+			public long weigh(CachedText value)
+			{
+				return value.text.length();
+			}
+		});
+
+		pageMetaDataStore = new PageMetaDataStore(propertiesDir);
+
+		if (!pageMetaDataStore.open())
+		{
+			migratePageProperties();
+		}
+
+		pageCatalog = new ConcurrentHashMap<String, PageMetaData>();
+
+		try
+		{
+			for (PageMetaData metaData : gitController.getHeadFiles())
+			{
+				String pageName = getPageName(metaData.fileName);
+				if (pageName == null)
+				{
+					continue;
+				}
+
+				// author, time and change note are stored with the metadata of
+				// the latest save, unless the page was changed outside the
+				// wiki since or never saved by it, as after a clone. Then
+				// author and time are those of the history index and the
+				// change note is read from the commit.
+				PageMetaData stored = pageMetaDataStore.get(pageName);
+				if (stored != null && stored.version == metaData.version)
+				{
+					metaData.author = stored.author;
+					metaData.changenote = stored.changenote;
+					metaData.commitTime = stored.commitTime;
+				} else if (metaData.changenote == null)
+				{
+					List<PageMetaData> latest = gitController.getVersionHistory(metaData.fileName, 0, 1, false);
+					if (!latest.isEmpty())
+					{
+						metaData.changenote = latest.get(0).changenote;
+					}
+				}
+
+				pageCatalog.put(pageName, metaData);
+			}
+		} catch (GitException e)
+		{
+			throw new IOException(e);
+		}
 	}
 
 	public void putPageText(WikiPage page, String text) throws ProviderException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			doPutPageText(page, text);
+			ok = true;
+		} finally
+		{
+			metrics.record(Metrics.Operation.PUT_PAGE_TEXT, start, ok);
+		}
+	}
+
+	private void doPutPageText(WikiPage page, String text) throws ProviderException
 	{
 		log.debug("putPageText: " + page);
 
-		super.putPageText(page, text);
+		textCache.remove(page.getName());
 
 		File f = findPage(page.getName());
 
@@ -110,22 +216,62 @@ public class GitFileProvider extends AbstractFileProvider
 
 		try
 		{
-			gitController.commit(f, metaData);
-			versionHistoryCache.remove(page.getName());
+			// the blob is made from these bytes, not read back from f, which
+			// a concurrent save of the page may be rewriting
+			byte[] bytes = text.getBytes(m_encoding);
 
-			putPageProperties(page, metaData);
+			PathChange change = gitController.commit(f, new ByteArrayInputStream(bytes), bytes.length, metaData);
 
+			textCache.put(page.getName(), new CachedText(text, change.length, change.lastModified));
+
+			putPageMetaData(page.getName(), metaData);
+
+			putCatalogPage(page.getName(), metaData);
+
+		} catch (UnsupportedEncodingException e)
+		{
+			throw new ProviderException(e.getMessage());
 		} catch (GitException e)
 		{
 			throw new ProviderException(e.getMessage());
 		}
 	}
 
+	/**
+	 * Keeps the newest version if saves of the same page finish out of order.
+	 */
+	private void putCatalogPage(String pageName, PageMetaData metaData)
+	{
+		while (true)
+		{
+			PageMetaData old = pageCatalog.putIfAbsent(pageName, metaData);
+
+			if (old == null || old.version > metaData.version || pageCatalog.replace(pageName, old, metaData))
+			{
+				return;
+			}
+		}
+	}
+
 	public WikiPage getPageInfo(String page, int version) throws ProviderException
 	{
-		log.debug("getPageInfo: " + page + " " + version);
+		long start = metrics.start();
+		boolean ok = false;
 
-		List<WikiPage> versions = null;
+		try
+		{
+			WikiPage result = doGetPageInfo(page, version);
+			ok = true;
+			return result;
+		} finally
+		{
+			metrics.record(Metrics.Operation.GET_PAGE_INFO, start, ok);
+		}
+	}
+
+	private WikiPage doGetPageInfo(String page, int version) throws ProviderException
+	{
+		log.debug("getPageInfo: " + page + " " + version);
 
 		File f = findPage(page);
 		if (!f.exists())
@@ -135,31 +281,45 @@ public class GitFileProvider extends AbstractFileProvider
 
 		if (version == WikiPageProvider.LATEST_VERSION)
 		{
-			WikiPage p = getPageInfoFromProperties(page);
-			if (p!=null)
+			PageMetaData metaData = pageCatalog.get(page);
+			if (metaData != null)
 			{
-				return p;
+				return newCatalogPage(page, metaData);
 			}
 		}
 
-		versions = getVersionHistory(page);
-		
-		if (version == WikiPageProvider.LATEST_VERSION)
-		{
-			return versions.get(0);
-		}
-
-		for (WikiPage p1 : versions)
+		// read just the one version rather than the whole history
+		int offset = 0;
+		if (version != WikiPageProvider.LATEST_VERSION)
 		{
-			if (p1.getVersion() == version)
+			offset = gitController.getVersionCount(f.getName()) - version;
+			if (offset < 0)
 			{
-				return p1;
+				return null;
 			}
 		}
-		return null;
+
+		List<WikiPage> versions = getVersionHistory(page, offset, 1);
+
+		return versions.isEmpty() ? null : versions.get(0);
 	}
 
 	public void deletePage(String pageName) throws ProviderException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			doDeletePage(pageName);
+			ok = true;
+		} finally
+		{
+			metrics.record(Metrics.Operation.DELETE_PAGE, start, ok);
+		}
+	}
+
+	private void doDeletePage(String pageName) throws ProviderException
 	{
 		log.debug("deletePage: " + pageName);
 
@@ -172,9 +332,15 @@ public class GitFileProvider extends AbstractFileProvider
 			throw new ProviderException("could not delete " + f);
 		}
 
+		textCache.remove(pageName);
+
+		pageCatalog.remove(pageName);
+
+		removePageMetaData(pageName);
+
 		try
 		{
-			gitController.commit(pageDirectory, gitUtil.getPageMetaData(page));
+			gitController.commit(f, gitUtil.getPageMetaData(page));
 		} catch (GitException e)
 		{
 			throw new ProviderException(e.getMessage());
@@ -182,6 +348,21 @@ public class GitFileProvider extends AbstractFileProvider
 	}
 
 	public void movePage(String from, String to) throws ProviderException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			doMovePage(from, to);
+			ok = true;
+		} finally
+		{
+			metrics.record(Metrics.Operation.MOVE_PAGE, start, ok);
+		}
+	}
+
+	private void doMovePage(String from, String to) throws ProviderException
 	{
 		WikiPage page = getPageInfo(from, WikiPageProvider.LATEST_VERSION);
 		PageMetaData metaData = gitUtil.getPageMetaData(page);
@@ -189,15 +370,40 @@ public class GitFileProvider extends AbstractFileProvider
 		File ffrom = findPage(from);
 		File fto = findPage(to);
 
+		// the history of the new page continues the old one, also before a
+		// queued commit is recorded and the rename is detected
+		int version = gitController.getVersionCount(ffrom.getName()) + 1;
+
 		boolean b = ffrom.renameTo(fto);
 		if (!b)
 		{
 			throw new ProviderException("Could not rename " + ffrom + " to " + fto);
 		}
 
+		CachedText cachedText = textCache.get(from);
+		textCache.remove(from);
+
+		// the renamed file keeps its length and modification time, an entry
+		// that was stale for ffrom is stale for fto
+		if (cachedText != null)
+		{
+			textCache.put(to, cachedText);
+		}
+
+		pageCatalog.remove(from);
+
+		removePageMetaData(from);
+
 		try
 		{
-			gitController.commit(pageDirectory, metaData);
+			gitController.move(ffrom, fto, metaData);
+
+			metaData.version = version;
+			metaData.fileSize = fto.length();
+
+			putPageMetaData(to, metaData);
+
+			pageCatalog.put(to, metaData);
 		} catch (GitException e)
 		{
 			throw new ProviderException(e.getMessage());
@@ -205,6 +411,22 @@ public class GitFileProvider extends AbstractFileProvider
 	}
 
 	public boolean pageExists(String page, int version)
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			boolean result = doPageExists(page, version);
+			ok = true;
+			return result;
+		} finally
+		{
+			metrics.record(Metrics.Operation.PAGE_EXISTS, start, ok);
+		}
+	}
+
+	private boolean doPageExists(String page, int version)
 	{
 		log.debug("pageExists: " + page + " " + version);
 
@@ -219,19 +441,27 @@ public class GitFileProvider extends AbstractFileProvider
 			return true;
 		}
 
-		List versionHistory = null;
+		// crawlers probe old versions, so do not build the history for this
+		return version <= gitController.getVersionCount(f.getName());
+	}
+
+	public String getPageText(String page, int version) throws ProviderException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
 		try
 		{
-			versionHistory = getVersionHistory(page);
-		} catch (ProviderException e)
+			String result = doGetPageText(page, version);
+			ok = true;
+			return result;
+		} finally
 		{
-			log.error(e);
+			metrics.record(Metrics.Operation.GET_PAGE_TEXT, start, ok);
 		}
-
-		return version <= versionHistory.size();
 	}
 
-	public String getPageText(String page, int version) throws ProviderException
+	private String doGetPageText(String page, int version) throws ProviderException
 	{
 		log.debug("getPageText: " + page + " " + version);
 
@@ -239,6 +469,17 @@ public class GitFileProvider extends AbstractFileProvider
 
 		if (version == WikiPageProvider.LATEST_VERSION)
 		{
+			CachedText cachedText = textCache.get(page);
+			if (cachedText != null && cachedText.isCurrent(f))
+			{
+				return cachedText.text;
+			}
+
+			// the file is looked at before it is read, a save in between
+			// leaves it different from the text read
+			long length = f.length();
+			long lastModified = f.lastModified();
+
 			String s;
 			try
 			{
@@ -247,6 +488,13 @@ public class GitFileProvider extends AbstractFileProvider
 			{
 				throw new ProviderException(e.getMessage());
 			}
+
+			cachedText = new CachedText(s, length, lastModified);
+			if (cachedText.isCurrent(f))
+			{
+				textCache.put(page, cachedText);
+			}
+
 			return s;
 		}
 
@@ -283,20 +531,61 @@ public class GitFileProvider extends AbstractFileProvider
 		return s;
 	}
 
+	/**
+	 * The WikiPage objects are made for each call from the history index and
+	 * the cached change notes, they are not kept.
+	 */
 	public List getVersionHistory(String page) throws ProviderException
 	{
-		List<WikiPage> versionHistory = versionHistoryCache.get(page);
-		if (versionHistory == null)
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			List result = getVersionHistoryFromGit(page);
+			ok = true;
+			return result;
+		} finally
+		{
+			metrics.record(Metrics.Operation.GET_VERSION_HISTORY, start, ok);
+		}
+	}
+
+	/**
+	 * Reads a window of the history of a page, for views that show the newest
+	 * versions only. The window is not cached, its cost depends on limit and
+	 * not on the number of versions of the page.
+	 *
+	 * @param offset
+	 *            the number of newest versions to skip
+	 * @param limit
+	 *            the maximum number of versions to return
+	 * @return the versions, newest first
+	 */
+	public List<WikiPage> getVersionHistory(String page, int offset, int limit) throws ProviderException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			List<WikiPage> result = getVersionHistoryFromGit(page, offset, limit);
+			ok = true;
+			return result;
+		} finally
 		{
-			versionHistory = getVersionHistoryFromGit(page);
-			versionHistoryCache.put(page, versionHistory);
+			metrics.record(Metrics.Operation.GET_VERSION_WINDOW, start, ok);
 		}
-		return versionHistory;
 	}
 
 	public List<WikiPage> getVersionHistoryFromGit(String page) throws ProviderException
 	{
-		log.debug("getVersionHistory: " + page);
+		return getVersionHistoryFromGit(page, 0, Integer.MAX_VALUE);
+	}
+
+	private List<WikiPage> getVersionHistoryFromGit(String page, int offset, int limit) throws ProviderException
+	{
+		log.debug("getVersionHistory: " + page + " " + offset + " " + limit);
 
 		File file = findPage(page);
 
@@ -304,18 +593,16 @@ public class GitFileProvider extends AbstractFileProvider
 		{
 			String fileName = file.getName();
 
-			List<PageMetaData> metaDataList = gitController.getVersionHistory(fileName, false);
+			List<PageMetaData> metaDataList = gitController.getVersionHistory(fileName, offset, limit, false);
 
 			List<WikiPage> pageVersions = new ArrayList<WikiPage>(metaDataList.size());
 
-			int v = metaDataList.size();
-
 			for (PageMetaData metaData : metaDataList)
 			{
 				WikiPage versionPage = new WikiPage(m_engine, page);
 				pageVersions.add(versionPage);
 
-				versionPage.setVersion(v--);
+				versionPage.setVersion(metaData.version);
 
 				versionPage.setAttribute(WikiPage.CHANGENOTE, metaData.changenote);
 
@@ -334,10 +621,241 @@ public class GitFileProvider extends AbstractFileProvider
 
 	}
 
+	public Collection findPages(QueryItem[] query)
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			Collection result = doFindPages(query);
+			ok = true;
+			return result;
+		} finally
+		{
+			metrics.record(Metrics.Operation.FIND_PAGES, start, ok);
+		}
+	}
+
+	private Collection doFindPages(QueryItem[] query)
+	{
+		List<SearchResult> result = new ArrayList<SearchResult>();
+
+		try
+		{
+			for (SearchIndex.Hit hit : GitUtil.search(gitController, query, false))
+			{
+				String pageName = getPageName(hit.path);
+				if (pageName == null)
+				{
+					continue;
+				}
+
+				PageMetaData metaData = pageCatalog.get(pageName);
+				WikiPage page = metaData != null ? newCatalogPage(pageName, metaData) : new WikiPage(m_engine,
+						pageName);
+
+				result.add(new GitSearchResult(page, hit.score));
+			}
+		} catch (GitException e)
+		{
+			log.error(e);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Searches all versions of all pages, including deleted ones.
+	 *
+	 * @return a SearchResult for every matching page version, best first
+	 */
+	public Collection findPageVersions(QueryItem[] query) throws ProviderException
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			Collection result = doFindPageVersions(query);
+			ok = true;
+			return result;
+		} finally
+		{
+			metrics.record(Metrics.Operation.FIND_PAGE_VERSIONS, start, ok);
+		}
+	}
+
+	private Collection doFindPageVersions(QueryItem[] query) throws ProviderException
+	{
+		List<SearchResult> result = new ArrayList<SearchResult>();
+
+		try
+		{
+			for (SearchIndex.Hit hit : GitUtil.search(gitController, query, true))
+			{
+				String pageName = getPageName(hit.path);
+				if (pageName == null)
+				{
+					continue;
+				}
+
+				int version = gitController.getVersion(hit.path, hit.blobId);
+				if (version == 0)
+				{
+					continue;
+				}
+
+				WikiPage page = doGetPageInfo(pageName, version);
+				if (page != null)
+				{
+					result.add(new GitSearchResult(page, hit.score));
+				}
+			}
+		} catch (GitException e)
+		{
+			throw new ProviderException(e.getMessage());
+		}
+
+		return result;
+	}
+
+	public Collection getAllChangedSince(Date date)
+	{
+		long start = metrics.start();
+		boolean ok = false;
+
+		try
+		{
+			Collection result = doGetAllChangedSince(date);
+			ok = true;
+			return result;
+		} finally
+		{
+			metrics.record(Metrics.Operation.GET_ALL_CHANGED_SINCE, start, ok);
+		}
+	}
+
+	private Collection doGetAllChangedSince(Date date)
+	{
+		log.debug("getAllChangedSince: " + date);
+
+		List<WikiPage> pages = new ArrayList<WikiPage>();
+
+		List<PageMetaData> metaDataList;
+		try
+		{
+			metaDataList = gitController.getChangedSince(date, true);
+		} catch (GitException e)
+		{
+			log.error(e);
+			return pages;
+		}
+
+		for (PageMetaData metaData : metaDataList)
+		{
+			String pageName = getPageName(metaData.fileName);
+			if (pageName == null)
+			{
+				continue;
+			}
+
+			WikiPage page = new WikiPage(m_engine, pageName);
+			pages.add(page);
+
+			page.setVersion(metaData.version);
+			page.setAttribute(WikiPage.CHANGENOTE, metaData.changenote);
+			page.setAuthor(metaData.author);
+			page.setLastModified(metaData.commitTime);
+			page.setSize(metaData.fileSize);
+
+			page.setAttribute(ATTR_CHANGETYPE, metaData.changeType.name());
+
+			if (metaData.oldFileName != null)
+			{
+				String oldName = getPageName(metaData.oldFileName);
+				if (oldName != null)
+				{
+					page.setAttribute(ATTR_OLDNAME, oldName);
+				}
+			}
+		}
+
+		return pages;
+	}
+
+	public Collection getAllPages() throws ProviderException
+	{
+		long start = metrics.start();
+
+		Collection<WikiPage> pages = new ArrayList<WikiPage>(pageCatalog.size());
+
+		for (Map.Entry<String, PageMetaData> e : pageCatalog.entrySet())
+		{
+			pages.add(newCatalogPage(e.getKey(), e.getValue()));
+		}
+
+		metrics.record(Metrics.Operation.GET_ALL_PAGES, start, true);
+
+		return pages;
+	}
+
+	public int getPageCount()
+	{
+		long start = metrics.start();
+
+		int count = pageCatalog.size();
+
+		metrics.record(Metrics.Operation.GET_PAGE_COUNT, start, true);
+
+		return count;
+	}
+
+	private WikiPage newCatalogPage(String pageName, PageMetaData metaData)
+	{
+		WikiPage page = new WikiPage(m_engine, pageName);
+
+		page.setVersion(metaData.version);
+		page.setAttribute(WikiPage.CHANGENOTE, metaData.changenote);
+		page.setAuthor(metaData.author);
+		page.setLastModified(metaData.commitTime);
+		page.setSize(metaData.fileSize);
+
+		return page;
+	}
+
+	/**
+	 * @return the page name stored in the repository path, or null if the path
+	 *         is not a page
+	 */
+	private String getPageName(String path)
+	{
+		if (path.indexOf('/') != -1 || !path.endsWith(FILE_EXT))
+		{
+			return null;
+		}
+
+		return unmangleName(path.substring(0, path.length() - FILE_EXT.length()));
+	}
+
 	public String getProviderInfo()
 	{
-		// TODO
-		return "";
+		String info = "change note cache: " + gitController.getChangenoteCache() + ", text cache: " + textCache
+				+ ", blob cache: " + gitController.getBlobCache();
+
+		if (gitController.getCommitQueue() != null)
+		{
+			info += ", commit queue: " + gitController.getCommitQueue();
+		}
+
+		if (gitController.getMaintenance() != null)
+		{
+			info += ", maintenance: " + gitController.getMaintenance();
+		}
+
+		info += ", metrics: " + metrics;
+
+		return info;
 	}
 
 	public void deleteVersion(String pageName, int version) throws ProviderException
@@ -352,77 +870,171 @@ public class GitFileProvider extends AbstractFileProvider
 		return pageExists(page, WikiPageProvider.LATEST_VERSION);
 	}
 
-	protected WikiPage getPageInfoFromProperties(String pageName) throws ProviderException
+	protected void putPageMetaData(String pageName, PageMetaData metaData) throws ProviderException
 	{
-		Properties p = pageProperties.get(pageName);
+		try
+		{
+			pageMetaDataStore.put(pageName, metaData);
+		} catch (IOException e)
+		{
+			throw new ProviderException(e.getMessage());
+		}
+	}
 
-		if (p == null)
+	protected void removePageMetaData(String pageName) throws ProviderException
+	{
+		try
+		{
+			pageMetaDataStore.remove(pageName);
+		} catch (IOException e)
 		{
-			String name = mangleName(pageName) + ".properties";
-			File f = new File(propertiesDir, name);
-			
-			if (!f.exists())
+			throw new ProviderException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Moves the page properties written by earlier versions into the page
+	 * metadata store.
+	 */
+	private void migratePageProperties() throws IOException
+	{
+		File[] files = propertiesDir.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+
+		int n = 0;
+
+		for (File f : files)
+		{
+			String name = f.getName();
+			if (!name.endsWith(".properties"))
 			{
-				return null;
+				continue;
 			}
 
-			p = new Properties();
+			Properties p = new Properties();
 			FileInputStream fis = null;
 
 			try
 			{
 				fis = new FileInputStream(f);
 				p.load(fis);
-			} catch (IOException e)
-			{
-				throw new ProviderException(e.getMessage());
 			} finally
 			{
 				IOUtils.closeQuietly(fis);
 			}
-		}
-		pageProperties.put(pageName, p);
 
-		WikiPage versionPage = new WikiPage(m_engine, pageName);
+			String pageName = unmangleName(name.substring(0, name.length() - ".properties".length()));
+
+			PageMetaData metaData = new PageMetaData();
 
-		versionPage.setVersion(Integer.parseInt(p.getProperty("version")));
+			metaData.author = p.getProperty("author");
+			metaData.changenote = p.getProperty(WikiPage.CHANGENOTE);
+			metaData.version = Integer.parseInt(p.getProperty("version", "0"));
+			metaData.commitTime = new Date(Long.parseLong(p.getProperty("time", "0")));
 
-		versionPage.setAttribute(WikiPage.CHANGENOTE, p.getProperty(WikiPage.CHANGENOTE));
+			// the version was never written, take it from the history
+			if (metaData.version == 0)
+			{
+				metaData.version = gitController.getVersionCount(mangleName(pageName) + FILE_EXT);
+			}
 
-		versionPage.setAuthor(p.getProperty("author"));
+			pageMetaDataStore.put(pageName, metaData);
+			n++;
+		}
 
-		Long l = Long.valueOf(p.getProperty("time"));
+		pageMetaDataStore.save();
 
-		versionPage.setLastModified(new Date(l));
+		for (File f : files)
+		{
+			if (f.getName().endsWith(".properties") && !f.delete())
+			{
+				log.warn("could not delete " + f);
+			}
+		}
 
-		return versionPage;
+		if (n > 0)
+		{
+			log.info("migrated " + n + " page properties to " + PageMetaDataStore.LOG_FILE);
+		}
 	}
 
-	protected void putPageProperties(WikiPage page, PageMetaData metaData) throws ProviderException
+	private static class GitSearchResult implements SearchResult
 	{
-		Properties p = new Properties();
+		private final WikiPage page;
 
-		p.setProperty("author", metaData.author);
-		p.setProperty(WikiPage.CHANGENOTE, metaData.changenote);
-		p.setProperty("version", "" + metaData.version);
-		p.setProperty("time", "" + metaData.commitTime.getTime());
+		private final int score;
 
-		String name = mangleName(page.getName()) + ".properties";
-		File f = new File(propertiesDir, name);
-		PrintWriter out = null;
-		try
+		GitSearchResult(WikiPage page, int score)
 		{
-			out = new PrintWriter(f, m_encoding);
-			p.store(out, " JSPWiki page properties for " + page.getName() + ". DO NOT MODIFY!");
-		} catch (Exception e)
+			this.page = page;
+			this.score = score;
+		}
+
+		public WikiPage getPage()
 		{
-			throw new ProviderException(e.getMessage());
-		} finally
+			return page;
+		}
+
+		public int getScore()
+		{
+			return score;
+		}
+
+		public String[] getContexts()
 		{
-			IOUtils.closeQuietly(out);
+			return new String[0];
 		}
+	}
+
+	/**
+	 * The text of a page file together with the modification time and length
+	 * of the file it was read from, so that changes made to the file outside
+	 * the wiki are noticed.
+	 */
+	protected static class CachedText
+	{
+		final String text;
+
+		final long lastModified;
+
+		final long length;
 
-		pageProperties.put(page.getName(), p);
+		CachedText(String text, long length, long lastModified)
+		{
+			this.text = text;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		boolean isCurrent(File f)
+		{
+			return f.lastModified() == lastModified && f.length() == length;
+		}
+	}
+
+	public void actionPerformed(WikiEvent event)
+	{
+		if (event instanceof WikiEngineEvent && event.getType() == WikiEngineEvent.SHUTDOWN)
+		{
+			try
+			{
+				pageMetaDataStore.close();
+			} catch (IOException e)
+			{
+				log.error(e);
+			}
+
+			try
+			{
+				gitController.close();
+			} catch (IOException e)
+			{
+				log.error(e);
+			}
+		}
 	}
 
 }
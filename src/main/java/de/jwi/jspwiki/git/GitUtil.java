@@ -17,11 +17,15 @@
 
 package de.jwi.jspwiki.git;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.wiki.WikiEngine;
 import org.apache.wiki.WikiPage;
 import org.apache.wiki.auth.NoSuchPrincipalException;
 import org.apache.wiki.auth.user.UserDatabase;
 import org.apache.wiki.auth.user.UserProfile;
+import org.apache.wiki.search.QueryItem;
 
 public class GitUtil
 {
@@ -32,6 +36,28 @@ public class GitUtil
 		this.engine = engine;
 	}
 
+	/**
+	 * Searches the repository of gitController for the words of a JSPWiki
+	 * query.
+	 */
+	protected static List<SearchIndex.Hit> search(GitController gitController, QueryItem[] query, boolean history)
+			throws GitException
+	{
+		List<String> required = new ArrayList<String>();
+		List<String> forbidden = new ArrayList<String>();
+		List<String> requested = new ArrayList<String>();
+
+		for (QueryItem item : query)
+		{
+			List<String> words = item.type == QueryItem.REQUIRED ? required
+					: item.type == QueryItem.FORBIDDEN ? forbidden : requested;
+
+			words.addAll(SearchIndex.words(item.word));
+		}
+
+		return gitController.search(required, forbidden, requested, history);
+	}
+
 	protected PageMetaData getPageMetaData(WikiPage page)
 	{
 		PageMetaData gitVersion = new PageMetaData();
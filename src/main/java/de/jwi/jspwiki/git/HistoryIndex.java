@@ -0,0 +1,936 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Index from a repository path to the commits that changed it, oldest first,
+ * together with the blob the path points to in each of these commits.
+ *
+ * The index is built with a single walk over the history and then kept up to
+ * date commit by commit, so looking up the history of a path does not have to
+ * walk the whole repository log again. It is saved to {@link #INDEX_FILE} in
+ * the git directory, so after a restart only the commits made since it was
+ * saved have to be walked.
+ *
+ * Renames are detected once, when a commit that deletes and adds paths is
+ * indexed, and kept as a link from the new path to the old one. The versions
+ * of a renamed path start with the versions of the path it was renamed from.
+ * A path can be the target of several renames in turn, each starts a new
+ * life of the path.
+ */
+public class HistoryIndex
+{
+	private static final Logger log = Logger.getLogger(HistoryIndex.class);
+
+	public static final String INDEX_FILE = "jspwiki-history.idx";
+
+	private static final int MAGIC = 0x4a574849; // JWHI
+
+	private static final int FORMAT_VERSION = 3;
+
+	/**
+	 * renames followed at most, guards against a corrupt index
+	 */
+	static final int MAX_RENAMES = 100;
+
+	private ConcurrentMap<String, VersionList> versions = new ConcurrentHashMap<String, VersionList>();
+
+	/**
+	 * the renames to a path, by the new path, in the order of their versions.
+	 * The lists are replaced, never changed.
+	 */
+	private ConcurrentMap<String, List<Rename>> renames = new ConcurrentHashMap<String, List<Rename>>();
+
+	/**
+	 * renames made by queued commits, by the new path, they follow the renames
+	 * until the commit is recorded
+	 */
+	private final ConcurrentMap<String, List<Rename>> pendingRenames = new ConcurrentHashMap<String, List<Rename>>();
+
+	/**
+	 * one String per author name, shared by all version lists
+	 */
+	private final Map<String, String> authors = new HashMap<String, String>();
+
+	/**
+	 * the last commit contained in the index, null for an empty repository
+	 */
+	private ObjectId head;
+
+	private File indexFile;
+
+	private boolean dirty;
+
+	private final Metrics metrics;
+
+	/**
+	 * blob sizes by blob id, blobs never change
+	 */
+	private final BoundedCache<ObjectId, Long> blobSizes = new BoundedCache<ObjectId, Long>(100000,
+			new BoundedCache.Weigher<Long>()
+			{
+				public long weigh(Long value)
+				{
+					return 1;
+				}
+			});
+
+	public HistoryIndex(Metrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Loads the saved index and brings it up to date with HEAD, or builds it
+	 * from scratch if there is no usable saved index.
+	 */
+	public synchronized void open(Repository repository) throws IOException
+	{
+		indexFile = new File(repository.getDirectory(), INDEX_FILE);
+
+		ObjectId current = repository.resolve(Constants.HEAD);
+
+		Map<String, VersionList.Builder> m = new HashMap<String, VersionList.Builder>();
+		Map<String, List<Rename>> r = new HashMap<String, List<Rename>>();
+		ObjectId indexed = null;
+
+		boolean loaded = false;
+
+		if (indexFile.exists())
+		{
+			try
+			{
+				indexed = load(indexFile, m, r);
+				loaded = true;
+			} catch (IOException e)
+			{
+				log.warn("could not read " + indexFile + ", rebuilding it", e);
+			}
+		}
+
+		if (loaded && !isAncestor(repository, indexed, current))
+		{
+			log.info(indexFile + " does not match HEAD, rebuilding it");
+			loaded = false;
+		}
+
+		if (!loaded)
+		{
+			m.clear();
+			r.clear();
+			authors.clear();
+			indexed = null;
+			dirty = true;
+		}
+
+		if (current != null && !current.equals(indexed))
+		{
+			walk(repository, m, r, indexed, current);
+			dirty = true;
+		}
+
+		ConcurrentMap<String, VersionList> index = new ConcurrentHashMap<String, VersionList>(m.size());
+		for (Map.Entry<String, VersionList.Builder> e : m.entrySet())
+		{
+			index.put(e.getKey(), e.getValue().build());
+		}
+
+		versions = index;
+		renames = new ConcurrentHashMap<String, List<Rename>>(r);
+		head = current;
+
+		save();
+	}
+
+	/**
+	 * Adds the paths changed by a new commit. Pending versions of the
+	 * recorded paths are replaced by the committed ones; a pending version
+	 * whose change turned out to be empty is dropped.
+	 *
+	 * @param recorded
+	 *            the changes the commit was made from
+	 */
+	public synchronized void update(Repository repository, ObjectId commitId, List<PathChange> recorded)
+			throws IOException
+	{
+		RevWalk walk = new RevWalk(repository);
+		TreeWalk treeWalk = new TreeWalk(walk.getObjectReader());
+
+		try
+		{
+			RevCommit rev = walk.parseCommit(commitId);
+
+			Map<String, String> renamed = new HashMap<String, String>();
+			Map<String, ObjectId> changed = changedPaths(repository, walk, treeWalk, rev, renamed);
+
+			for (PathChange change : recorded)
+			{
+				if (!change.isDelete())
+				{
+					blobSizes.put(change.blobId, change.length);
+				}
+			}
+
+			for (Map.Entry<String, ObjectId> e : changed.entrySet())
+			{
+				ObjectId blobId = e.getValue();
+
+				PathVersion version = new PathVersion(rev.copy(), blobId, intern(rev.getAuthorIdent().getName()),
+						(long) rev.getCommitTime() * 1000, blobSize(walk.getObjectReader(), blobId));
+
+				replacePending(e.getKey(), version);
+			}
+
+			for (PathChange change : recorded)
+			{
+				if (!changed.containsKey(change.path))
+				{
+					replacePending(change.path, null);
+				}
+
+				if (change.renamedFrom != null)
+				{
+					removePendingRename(change.path);
+				}
+			}
+
+			for (Map.Entry<String, String> e : renamed.entrySet())
+			{
+				// the delete of the old path and the add of the new one are the
+				// last committed versions now
+				renames.put(e.getKey(), append(renames.get(e.getKey()), new Rename(e.getValue(), getList(e.getValue())
+						.getCommittedCount() - 1, getList(e.getKey()).getCommittedCount() - 1)));
+			}
+
+			head = rev.copy();
+			dirty = true;
+		} finally
+		{
+			treeWalk.close();
+			walk.close();
+		}
+	}
+
+	/**
+	 * Adds a version of path whose commit is still queued.
+	 */
+	public synchronized void addPending(String path, ObjectId blobId, String author, long commitTime, long size,
+			String changenote)
+	{
+		versions.put(path, getList(path).addPending(new PathVersion(null, blobId, author, commitTime, size,
+				changenote)));
+	}
+
+	/**
+	 * Records that a queued commit moves from to path. The pending versions of
+	 * the commit must have been added, the delete of from and the add of path
+	 * are the last versions of each.
+	 */
+	public synchronized void addPendingRename(String path, String from)
+	{
+		pendingRenames.put(path, append(pendingRenames.get(path), new Rename(from, getList(from).size() - 1,
+				getList(path).size() - 1)));
+	}
+
+	/**
+	 * Removes the oldest pending rename to path, the one of the commit that
+	 * was recorded or discarded.
+	 */
+	private void removePendingRename(String path)
+	{
+		List<Rename> l = pendingRenames.get(path);
+
+		if (l == null)
+		{
+			return;
+		}
+
+		if (l.size() == 1)
+		{
+			pendingRenames.remove(path);
+		} else
+		{
+			pendingRenames.put(path, new ArrayList<Rename>(l.subList(1, l.size())));
+		}
+	}
+
+	/**
+	 * @return a new list with the renames of l followed by rename, l may be
+	 *         null
+	 */
+	private static List<Rename> append(List<Rename> l, Rename rename)
+	{
+		List<Rename> appended = new ArrayList<Rename>(l == null ? 1 : l.size() + 1);
+
+		if (l != null)
+		{
+			appended.addAll(l);
+		}
+		appended.add(rename);
+
+		return appended;
+	}
+
+	/**
+	 * Drops the pending versions of changes that could not be committed.
+	 */
+	public synchronized void discardPending(List<PathChange> changes)
+	{
+		for (PathChange change : changes)
+		{
+			replacePending(change.path, null);
+
+			if (change.renamedFrom != null)
+			{
+				removePendingRename(change.path);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the oldest pending version of path with version, or appends
+	 * version if there is none. A null version removes the pending version.
+	 */
+	private void replacePending(String path, PathVersion version)
+	{
+		VersionList l = getList(path).replacePending(version);
+
+		if (l.isEmpty())
+		{
+			versions.remove(path);
+		} else
+		{
+			versions.put(path, l);
+		}
+	}
+
+	/**
+	 * @return the versions of path, oldest first, never null. If path was
+	 *         renamed, the versions of the old path up to the rename come
+	 *         first. The list is immutable, PathVersion objects are created as
+	 *         they are read.
+	 */
+	public List<PathVersion> getVersions(String path)
+	{
+		VersionList l = getList(path);
+
+		if (getRename(path, l.size()) == null)
+		{
+			return l;
+		}
+
+		List<List<PathVersion>> segments = new ArrayList<List<PathVersion>>();
+		follow(path, l.size(), segments, 0);
+
+		return new FollowedList(segments);
+	}
+
+	/**
+	 * @return the number of versions {@link #getVersions(String)} returns,
+	 *         without creating the list
+	 */
+	public int getVersionCount(String path)
+	{
+		return follow(path, getList(path).size(), null, 0);
+	}
+
+	/**
+	 * Follows the renames of path back to its first name.
+	 *
+	 * @param limit
+	 *            the number of versions of path to take, the versions made
+	 *            after a later rename away from path are left out
+	 * @param segments
+	 *            collects the version lists, oldest first, may be null
+	 * @return the number of versions
+	 */
+	private int follow(String path, int limit, List<List<PathVersion>> segments, int depth)
+	{
+		VersionList l = getList(path);
+		limit = Math.min(limit, l.size());
+
+		int first = 0;
+		int count = 0;
+
+		Rename rename = getRename(path, limit);
+		if (rename != null && depth < MAX_RENAMES)
+		{
+			count = follow(rename.from, rename.fromCount, segments, depth + 1);
+			first = rename.toIndex;
+		}
+
+		if (segments != null)
+		{
+			segments.add(l.subList(first, limit));
+		}
+
+		return count + limit - first;
+	}
+
+	/**
+	 * @return the last rename to path within its first limit versions, or
+	 *         null
+	 */
+	private Rename getRename(String path, int limit)
+	{
+		Rename rename = lastBefore(pendingRenames.get(path), limit);
+
+		return rename != null ? rename : lastBefore(renames.get(path), limit);
+	}
+
+	private static Rename lastBefore(List<Rename> l, int limit)
+	{
+		if (l != null)
+		{
+			for (int i = l.size() - 1; i >= 0; i--)
+			{
+				if (l.get(i).toIndex < limit)
+				{
+					return l.get(i);
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private VersionList getList(String path)
+	{
+		VersionList l = versions.get(path);
+
+		return l == null ? VersionList.EMPTY : l;
+	}
+
+	private String intern(String author)
+	{
+		String interned = authors.get(author);
+
+		if (interned == null)
+		{
+			authors.put(author, author);
+			interned = author;
+		}
+
+		return interned;
+	}
+
+	/**
+	 * @param version
+	 *            the version, counting from 1 for the oldest
+	 * @return the version of path or null if there is no such version
+	 */
+	public PathVersion getVersion(String path, int version)
+	{
+		List<PathVersion> l = getVersions(path);
+
+		if (version < 1 || version > l.size())
+		{
+			return null;
+		}
+
+		return l.get(version - 1);
+	}
+
+	/**
+	 * Writes the index to the git directory, if it has changed since it was
+	 * last written.
+	 */
+	public synchronized void save() throws IOException
+	{
+		if (!dirty || indexFile == null)
+		{
+			return;
+		}
+
+		LockFile lock = new LockFile(indexFile);
+		if (!lock.lock())
+		{
+			throw new IOException("could not lock " + indexFile);
+		}
+
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(lock.getOutputStream()));
+
+			Map<String, VersionList> committed = new HashMap<String, VersionList>();
+			for (Map.Entry<String, VersionList> e : versions.entrySet())
+			{
+				if (e.getValue().getCommittedCount() > 0)
+				{
+					committed.put(e.getKey(), e.getValue());
+				}
+			}
+
+			List<String> authorNames = new ArrayList<String>();
+			Map<String, Integer> authorIds = new HashMap<String, Integer>();
+			for (VersionList l : committed.values())
+			{
+				for (int i = 0; i < l.getCommittedCount(); i++)
+				{
+					String author = l.getAuthor(i);
+					if (!authorIds.containsKey(author))
+					{
+						authorIds.put(author, authorNames.size());
+						authorNames.add(author);
+					}
+				}
+			}
+
+			byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			writeId(out, head == null ? ObjectId.zeroId() : head, id);
+
+			out.writeInt(authorNames.size());
+			for (String author : authorNames)
+			{
+				writeString(out, author);
+			}
+
+			out.writeInt(committed.size());
+			for (Map.Entry<String, VersionList> e : committed.entrySet())
+			{
+				writeString(out, e.getKey());
+
+				VersionList l = e.getValue();
+
+				out.writeInt(l.getCommittedCount());
+				for (int i = 0; i < l.getCommittedCount(); i++)
+				{
+					l.writeIds(out, i);
+					out.writeInt(authorIds.get(l.getAuthor(i)));
+					out.writeLong(l.getCommitTime(i));
+					out.writeLong(l.getSize(i));
+				}
+			}
+
+			out.writeInt(renames.size());
+			for (Map.Entry<String, List<Rename>> e : renames.entrySet())
+			{
+				writeString(out, e.getKey());
+
+				out.writeInt(e.getValue().size());
+				for (Rename rename : e.getValue())
+				{
+					writeString(out, rename.from);
+					out.writeInt(rename.fromCount);
+					out.writeInt(rename.toIndex);
+				}
+			}
+
+			out.writeInt(MAGIC);
+			out.close();
+
+			if (!lock.commit())
+			{
+				throw new IOException("could not write " + indexFile);
+			}
+
+			dirty = false;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads a saved index through a memory mapped buffer.
+	 *
+	 * @return the HEAD the saved index was built for, null for an empty
+	 *         repository
+	 */
+	private ObjectId load(File file, Map<String, VersionList.Builder> m, Map<String, List<Rename>> r)
+			throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION)
+			{
+				throw new IOException("not a history index: " + file);
+			}
+
+			byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+			byte[] ids = new byte[VersionList.ID_BYTES];
+
+			ObjectId indexed = readId(buf, id);
+
+			String[] authorNames = new String[buf.getInt()];
+			for (int i = 0; i < authorNames.length; i++)
+			{
+				authorNames[i] = intern(readString(buf));
+			}
+
+			int paths = buf.getInt();
+			for (int i = 0; i < paths; i++)
+			{
+				String path = readString(buf);
+
+				int n = buf.getInt();
+				VersionList.Builder l = new VersionList.Builder();
+				for (int j = 0; j < n; j++)
+				{
+					buf.get(ids);
+					String author = authorNames[buf.getInt()];
+					long commitTime = buf.getLong();
+					long size = buf.getLong();
+
+					l.add(ids, author, commitTime, size);
+				}
+				m.put(path, l);
+			}
+
+			int n = buf.getInt();
+			for (int i = 0; i < n; i++)
+			{
+				String to = readString(buf);
+
+				int count = buf.getInt();
+				List<Rename> l = new ArrayList<Rename>(Math.max(0, Math.min(count, buf.remaining())));
+				for (int j = 0; j < count; j++)
+				{
+					String from = readString(buf);
+
+					l.add(new Rename(from, buf.getInt(), buf.getInt()));
+				}
+				r.put(to, l);
+			}
+
+			if (buf.getInt() != MAGIC)
+			{
+				throw new IOException("truncated history index: " + file);
+			}
+
+			return ObjectId.zeroId().equals(indexed) ? null : indexed;
+		} catch (BufferUnderflowException e)
+		{
+			throw new IOException("truncated history index: " + file);
+		} catch (ArrayIndexOutOfBoundsException e)
+		{
+			throw new IOException("corrupt history index: " + file);
+		} finally
+		{
+			raf.close();
+		}
+	}
+
+	private boolean isAncestor(Repository repository, ObjectId indexed, ObjectId current) throws IOException
+	{
+		if (indexed == null)
+		{
+			return true;
+		}
+
+		if (current == null)
+		{
+			return false;
+		}
+
+		RevWalk walk = new RevWalk(repository);
+		try
+		{
+			return walk.isMergedInto(walk.parseCommit(indexed), walk.parseCommit(current));
+		} catch (MissingObjectException e)
+		{
+			return false;
+		} finally
+		{
+			walk.close();
+		}
+	}
+
+	/**
+	 * Adds the commits reachable from to but not from from to m, oldest first,
+	 * and their renames to r.
+	 */
+	private void walk(Repository repository, Map<String, VersionList.Builder> m, Map<String, List<Rename>> r,
+			ObjectId from, ObjectId to) throws IOException
+	{
+		RevWalk walk = new RevWalk(repository);
+		TreeWalk treeWalk = new TreeWalk(walk.getObjectReader());
+
+		try
+		{
+			walk.sort(RevSort.TOPO);
+			walk.sort(RevSort.REVERSE, true);
+			walk.markStart(walk.parseCommit(to));
+			if (from != null)
+			{
+				walk.markUninteresting(walk.parseCommit(from));
+			}
+
+			Map<String, String> renamed = new HashMap<String, String>();
+
+			RevCommit rev;
+			while ((rev = walk.next()) != null)
+			{
+				metrics.increment(Metrics.Counter.COMMITS_WALKED);
+
+				String author = intern(rev.getAuthorIdent().getName());
+				long commitTime = (long) rev.getCommitTime() * 1000;
+
+				renamed.clear();
+
+				for (Map.Entry<String, ObjectId> e : changedPaths(repository, walk, treeWalk, rev, renamed).entrySet())
+				{
+					VersionList.Builder l = m.get(e.getKey());
+					if (l == null)
+					{
+						l = new VersionList.Builder();
+						m.put(e.getKey(), l);
+					}
+
+					ObjectId blobId = e.getValue();
+					l.add(rev, blobId, author, commitTime, blobSize(walk.getObjectReader(), blobId));
+				}
+
+				for (Map.Entry<String, String> e : renamed.entrySet())
+				{
+					r.put(e.getKey(), append(r.get(e.getKey()), new Rename(e.getValue(), m.get(e.getValue()).size() - 1,
+							m.get(e.getKey()).size() - 1)));
+				}
+			}
+		} finally
+		{
+			treeWalk.close();
+			walk.close();
+		}
+	}
+
+	/**
+	 * Reads the size from the object header, without inflating the object.
+	 *
+	 * @return the size, 0 for the zero id of a deleted path
+	 */
+	private long blobSize(ObjectReader reader, ObjectId blobId) throws IOException
+	{
+		if (ObjectId.zeroId().equals(blobId))
+		{
+			return 0;
+		}
+
+		Long size = blobSizes.get(blobId);
+
+		if (size == null)
+		{
+			size = reader.getObjectSize(blobId, Constants.OBJ_BLOB);
+			blobSizes.put(blobId.copy(), size);
+		}
+
+		return size;
+	}
+
+	/**
+	 * Only a commit that deletes and adds paths can contain a rename, so the
+	 * rename detection runs for these commits only.
+	 *
+	 * @param renamed
+	 *            gets the new and the old path of the renames in rev
+	 * @return the paths changed by rev and the blob they point to afterwards
+	 */
+	private Map<String, ObjectId> changedPaths(Repository repository, RevWalk walk, TreeWalk treeWalk,
+			RevCommit rev, Map<String, String> renamed) throws IOException
+	{
+		Map<String, ObjectId> paths = new LinkedHashMap<String, ObjectId>();
+
+		treeWalk.reset();
+		treeWalk.setRecursive(true);
+		treeWalk.setFilter(TreeFilter.ANY_DIFF);
+
+		RevCommit parent = null;
+
+		if (rev.getParentCount() == 0)
+		{
+			treeWalk.addTree(new EmptyTreeIterator());
+		} else
+		{
+			parent = walk.parseCommit(rev.getParent(0));
+			treeWalk.addTree(parent.getTree());
+		}
+		treeWalk.addTree(rev.getTree());
+
+		boolean adds = false;
+		boolean deletes = false;
+
+		while (treeWalk.next())
+		{
+			paths.put(treeWalk.getPathString(), treeWalk.getObjectId(1));
+
+			adds |= treeWalk.getRawMode(0) == FileMode.TYPE_MISSING;
+			deletes |= treeWalk.getRawMode(1) == FileMode.TYPE_MISSING;
+		}
+
+		if (adds && deletes && parent != null)
+		{
+			treeWalk.reset(parent.getTree(), rev.getTree());
+
+			RenameDetector renameDetector = new RenameDetector(repository);
+			renameDetector.addAll(DiffEntry.scan(treeWalk));
+
+			for (DiffEntry e : renameDetector.compute(walk.getObjectReader(), NullProgressMonitor.INSTANCE))
+			{
+				if (e.getChangeType() == DiffEntry.ChangeType.RENAME)
+				{
+					renamed.put(e.getNewPath(), e.getOldPath());
+				}
+			}
+		}
+
+		return paths;
+	}
+
+	/**
+	 * A path renamed from another one.
+	 */
+	private static final class Rename
+	{
+		final String from;
+
+		/**
+		 * the number of versions of from before the rename
+		 */
+		final int fromCount;
+
+		/**
+		 * the index of the first version after the rename in the versions of
+		 * the new path
+		 */
+		final int toIndex;
+
+		Rename(String from, int fromCount, int toIndex)
+		{
+			this.from = from;
+			this.fromCount = fromCount;
+			this.toIndex = toIndex;
+		}
+	}
+
+	/**
+	 * The version lists of a path and the paths it was renamed from, as one
+	 * list.
+	 */
+	private static final class FollowedList extends AbstractList<PathVersion> implements RandomAccess
+	{
+		private final List<List<PathVersion>> segments;
+
+		private final int size;
+
+		FollowedList(List<List<PathVersion>> segments)
+		{
+			this.segments = segments;
+
+			int n = 0;
+			for (List<PathVersion> segment : segments)
+			{
+				n += segment.size();
+			}
+			size = n;
+		}
+
+		public int size()
+		{
+			return size;
+		}
+
+		public PathVersion get(int i)
+		{
+			if (i < 0 || i >= size)
+			{
+				throw new IndexOutOfBoundsException(i + " of " + size);
+			}
+
+			for (List<PathVersion> segment : segments)
+			{
+				if (i < segment.size())
+				{
+					return segment.get(i);
+				}
+				i -= segment.size();
+			}
+
+			throw new IndexOutOfBoundsException();
+		}
+	}
+
+	private static void writeId(DataOutputStream out, ObjectId objectId, byte[] buf) throws IOException
+	{
+		objectId.copyRawTo(buf, 0);
+		out.write(buf);
+	}
+
+	private static ObjectId readId(ByteBuffer in, byte[] buf)
+	{
+		in.get(buf);
+		return ObjectId.fromRaw(buf);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] b = s.getBytes(Constants.CHARSET);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer in)
+	{
+		byte[] b = new byte[in.getInt()];
+		in.get(b);
+		return new String(b, Constants.CHARSET);
+	}
+}
@@ -0,0 +1,451 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Call counts, error counts and latency histograms of the provider and
+ * repository operations, and counters of the work done in git.
+ *
+ * Everything is kept in preallocated atomic arrays indexed by enum ordinal,
+ * so recording does not allocate. The metrics are published as a dynamic
+ * MBean with one attribute per figure.
+ */
+public class Metrics implements DynamicMBean
+{
+	private static final Logger log = Logger.getLogger(Metrics.class);
+
+	public enum Operation
+	{
+		PUT_PAGE_TEXT, GET_PAGE_TEXT, GET_PAGE_INFO, PAGE_EXISTS, DELETE_PAGE, MOVE_PAGE, GET_VERSION_HISTORY,
+		GET_VERSION_WINDOW, GET_ALL_PAGES, GET_PAGE_COUNT, GET_ALL_CHANGED_SINCE, FIND_PAGES, FIND_PAGE_VERSIONS,
+
+		PUT_ATTACHMENT_DATA, GET_ATTACHMENT_DATA, GET_ATTACHMENT_INFO, LIST_ATTACHMENTS, LIST_ALL_CHANGED,
+		FIND_ATTACHMENTS, DELETE_ATTACHMENT, MOVE_ATTACHMENTS_FOR_PAGE,
+
+		GIT_COMMIT, GIT_RECORD, GIT_STORE, GIT_VERSION_HISTORY, GIT_CHANGED_SINCE, GIT_HEAD_FILES,
+		GIT_READ_HISTORY_OBJECT, GIT_SEARCH
+	}
+
+	public enum Counter
+	{
+		COMMITS_WALKED, OBJECTS_OPENED, BYTES_INFLATED, COMMIT_RETRIES
+	}
+
+	/**
+	 * Latencies in nanoseconds, in buckets of four per power of two, so
+	 * percentiles are exact to 25%.
+	 */
+	static class Histogram
+	{
+		private static final int SUB_BUCKETS = 4;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong errors = new AtomicLong();
+
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long nanos, boolean ok)
+		{
+			if (nanos < 0)
+			{
+				nanos = 0;
+			}
+
+			buckets.incrementAndGet(bucket(nanos));
+			count.incrementAndGet();
+
+			if (!ok)
+			{
+				errors.incrementAndGet();
+			}
+
+			long m = max.get();
+			while (nanos > m && !max.compareAndSet(m, nanos))
+			{
+				m = max.get();
+			}
+		}
+
+		static int bucket(long nanos)
+		{
+			if (nanos < SUB_BUCKETS)
+			{
+				return (int) nanos;
+			}
+
+			int msb = 63 - Long.numberOfLeadingZeros(nanos);
+			int sub = (int) (nanos >>> (msb - 2)) & (SUB_BUCKETS - 1);
+
+			return (msb - 1) * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * @return the upper bound of the bucket
+		 */
+		static long upperBound(int bucket)
+		{
+			if (bucket < SUB_BUCKETS)
+			{
+				return bucket;
+			}
+
+			int msb = bucket / SUB_BUCKETS + 1;
+			int sub = bucket % SUB_BUCKETS;
+
+			return ((long) (SUB_BUCKETS + sub + 1) << (msb - 2)) - 1;
+		}
+
+		/**
+		 * @return the latency below which the fraction q of the calls
+		 *         completed, in nanoseconds
+		 */
+		long percentile(double q)
+		{
+			long n = count.get();
+			if (n == 0)
+			{
+				return 0;
+			}
+
+			long threshold = (long) Math.ceil(n * q);
+			long seen = 0;
+
+			for (int i = 0; i < buckets.length(); i++)
+			{
+				seen += buckets.get(i);
+				if (seen >= threshold)
+				{
+					return Math.min(upperBound(i), max.get());
+				}
+			}
+
+			return max.get();
+		}
+
+		long getCount()
+		{
+			return count.get();
+		}
+
+		long getErrors()
+		{
+			return errors.get();
+		}
+
+		long getMax()
+		{
+			return max.get();
+		}
+	}
+
+	private final Histogram[] histograms = new Histogram[Operation.values().length];
+
+	private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+	private ObjectName objectName;
+
+	public Metrics()
+	{
+		for (int i = 0; i < histograms.length; i++)
+		{
+			histograms[i] = new Histogram();
+		}
+	}
+
+	/**
+	 * @return the start time to pass to {@link #record}
+	 */
+	public long start()
+	{
+		return System.nanoTime();
+	}
+
+	public void record(Operation operation, long start, boolean ok)
+	{
+		histograms[operation.ordinal()].record(System.nanoTime() - start, ok);
+	}
+
+	public void add(Counter counter, long delta)
+	{
+		counters.addAndGet(counter.ordinal(), delta);
+	}
+
+	public void increment(Counter counter)
+	{
+		counters.incrementAndGet(counter.ordinal());
+	}
+
+	public long getCount(Operation operation)
+	{
+		return histograms[operation.ordinal()].getCount();
+	}
+
+	public long getErrors(Operation operation)
+	{
+		return histograms[operation.ordinal()].getErrors();
+	}
+
+	/**
+	 * @return the latency below which the fraction q of the calls completed,
+	 *         in nanoseconds
+	 */
+	public long getPercentile(Operation operation, double q)
+	{
+		return histograms[operation.ordinal()].percentile(q);
+	}
+
+	public long getMax(Operation operation)
+	{
+		return histograms[operation.ordinal()].getMax();
+	}
+
+	public long get(Counter counter)
+	{
+		return counters.get(counter.ordinal());
+	}
+
+	/**
+	 * Publishes the metrics on the platform MBean server.
+	 */
+	public void register(String name)
+	{
+		try
+		{
+			objectName = new ObjectName("de.jwi.jspwiki.git:type=Metrics,name=" + ObjectName.quote(name));
+
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+			{
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+		} catch (Exception e)
+		{
+			log.warn("could not register metrics MBean " + name, e);
+			objectName = null;
+		}
+	}
+
+	public void unregister()
+	{
+		if (objectName == null)
+		{
+			return;
+		}
+
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e)
+		{
+			log.warn("could not unregister " + objectName, e);
+		}
+
+		objectName = null;
+	}
+
+	/**
+	 * @return the operations that were called, with count, errors and p50,
+	 *         p99 and max latency in milliseconds, and the git counters
+	 */
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+
+		for (Operation operation : Operation.values())
+		{
+			Histogram h = histograms[operation.ordinal()];
+			if (h.getCount() == 0)
+			{
+				continue;
+			}
+
+			if (sb.length() > 0)
+			{
+				sb.append(", ");
+			}
+
+			sb.append(String.format("%s(count=%d, errors=%d, p50=%.3fms, p99=%.3fms, max=%.3fms)",
+					name(operation), h.getCount(), h.getErrors(), h.percentile(0.5) / 1e6,
+					h.percentile(0.99) / 1e6, h.getMax() / 1e6));
+		}
+
+		for (Counter counter : Counter.values())
+		{
+			if (sb.length() > 0)
+			{
+				sb.append(", ");
+			}
+
+			sb.append(name(counter)).append('=').append(get(counter));
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * @return the camel case name of the enum constant, putPageText for
+	 *         PUT_PAGE_TEXT
+	 */
+	private static String name(Enum<?> e)
+	{
+		StringBuilder sb = new StringBuilder();
+
+		boolean upper = false;
+		for (char c : e.name().toLowerCase().toCharArray())
+		{
+			if (c == '_')
+			{
+				upper = true;
+			} else
+			{
+				sb.append(upper ? Character.toUpperCase(c) : c);
+				upper = false;
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private static final String[] FIGURES = { "Count", "Errors", "P50Nanos", "P99Nanos", "MaxNanos" };
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException
+	{
+		for (Counter counter : Counter.values())
+		{
+			if (attribute.equals(name(counter)))
+			{
+				return get(counter);
+			}
+		}
+
+		for (Operation operation : Operation.values())
+		{
+			String prefix = name(operation);
+			if (!attribute.startsWith(prefix))
+			{
+				continue;
+			}
+
+			String figure = attribute.substring(prefix.length());
+			Histogram h = histograms[operation.ordinal()];
+
+			if (figure.equals("Count"))
+			{
+				return h.getCount();
+			} else if (figure.equals("Errors"))
+			{
+				return h.getErrors();
+			} else if (figure.equals("P50Nanos"))
+			{
+				return h.percentile(0.5);
+			} else if (figure.equals("P99Nanos"))
+			{
+				return h.percentile(0.99);
+			} else if (figure.equals("MaxNanos"))
+			{
+				return h.getMax();
+			}
+		}
+
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes)
+	{
+		AttributeList list = new AttributeList();
+
+		for (String attribute : attributes)
+		{
+			try
+			{
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e)
+			{
+				// left out, as the contract of getAttributes says
+			}
+		}
+
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("read only: " + attribute.getName());
+	}
+
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+	/**
+	 * There are no operations, only attributes.
+	 */
+	public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException,
+			ReflectionException
+	{
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo()
+	{
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+
+		for (Operation operation : Operation.values())
+		{
+			for (String figure : FIGURES)
+			{
+				attributes.add(new MBeanAttributeInfo(name(operation) + figure, "long", figure + " of "
+						+ name(operation), true, false, false));
+			}
+		}
+
+		for (Counter counter : Counter.values())
+		{
+			attributes.add(new MBeanAttributeInfo(name(counter), "long", name(counter), true, false, false));
+		}
+
+		return new MBeanInfo(getClass().getName(), "GitFileProvider metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+				new MBeanOperationInfo[0], null);
+	}
+}
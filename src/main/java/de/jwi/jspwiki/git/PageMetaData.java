@@ -19,6 +19,9 @@ package de.jwi.jspwiki.git;
 
 import java.util.Date;
 
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.ObjectId;
+
 public class PageMetaData
 {
 	public String author;
@@ -28,6 +31,11 @@ public class PageMetaData
 
 	public String fileName;
 	public long fileSize;
+	public ObjectId blobId;
 	
 	public int version;
+
+	public DiffEntry.ChangeType changeType;
+
+	public String oldFileName;
 }
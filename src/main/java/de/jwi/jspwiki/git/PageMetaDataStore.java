@@ -0,0 +1,569 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.lib.Constants;
+
+/**
+ * Author, change note, version and time of the latest version of every page,
+ * in a single append-only log.
+ *
+ * Every put or remove appends one record to {@link #LOG_FILE}, the offsets of
+ * the live records are kept in memory. They are saved to {@link #INDEX_FILE}
+ * on close, which is memory mapped at startup, so only the records appended
+ * after it was saved have to be scanned. When more than half of the log is
+ * superseded records, the live records are copied into a new log.
+ */
+public class PageMetaDataStore
+{
+	private static final Logger log = Logger.getLogger(PageMetaDataStore.class);
+
+	public static final String LOG_FILE = "pages.log";
+
+	public static final String INDEX_FILE = "pages.idx";
+
+	private static final int MAGIC = 0x4a57504d;
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int HEADER_LENGTH = 8;
+
+	private static final byte PUT = 1;
+
+	private static final byte REMOVE = 0;
+
+	/**
+	 * the log is not compacted before it has this much garbage
+	 */
+	private static final long MIN_GARBAGE = 1024 * 1024;
+
+	private static class Entry
+	{
+		final long offset;
+
+		final int length;
+
+		Entry(long offset, int length)
+		{
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final File logFile;
+
+	private final File indexFile;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private RandomAccessFile raf;
+
+	private FileChannel channel;
+
+	private long length;
+
+	private long liveBytes;
+
+	private boolean dirty;
+
+	public PageMetaDataStore(File dir)
+	{
+		this.logFile = new File(dir, LOG_FILE);
+		this.indexFile = new File(dir, INDEX_FILE);
+	}
+
+	/**
+	 * @return false if there was no log yet
+	 */
+	public synchronized boolean open() throws IOException
+	{
+		boolean exists = logFile.exists();
+
+		raf = new RandomAccessFile(logFile, "rw");
+		channel = raf.getChannel();
+
+		if (!exists || channel.size() < HEADER_LENGTH)
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+			channel.truncate(0);
+			write(header, 0);
+			length = HEADER_LENGTH;
+			dirty = true;
+			return false;
+		}
+
+		ByteBuffer header = read(0, HEADER_LENGTH);
+		if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION)
+		{
+			throw new IOException("not a page metadata log: " + logFile);
+		}
+
+		long indexed = HEADER_LENGTH;
+		if (indexFile.exists())
+		{
+			try
+			{
+				indexed = load();
+			} catch (IOException e)
+			{
+				log.warn("ignoring page metadata index: " + e.getMessage());
+				entries.clear();
+				indexed = HEADER_LENGTH;
+			}
+		}
+
+		scan(indexed);
+
+		for (Entry entry : entries.values())
+		{
+			liveBytes += entry.length;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the stored metadata of pageName, or null if there is none or
+	 *         the record found is not the one of pageName
+	 */
+	public synchronized PageMetaData get(String pageName) throws IOException
+	{
+		Entry entry = entries.get(pageName);
+
+		if (entry == null)
+		{
+			return null;
+		}
+
+		ByteBuffer buf = read(entry.offset, entry.length);
+
+		try
+		{
+			buf.getInt();
+
+			// an index saved for an older log, after a crash between
+			// compact() and save(), points to the records of other pages
+			if (buf.get() != PUT || !pageName.equals(readString(buf)))
+			{
+				log.warn("page metadata index does not match " + logFile + " for " + pageName);
+				return null;
+			}
+
+			PageMetaData metaData = new PageMetaData();
+
+			metaData.author = readString(buf);
+			metaData.changenote = readString(buf);
+			metaData.version = buf.getInt();
+			metaData.commitTime = new Date(buf.getLong());
+
+			return metaData;
+		} catch (RuntimeException e)
+		{
+			log.warn("page metadata index does not match " + logFile + " for " + pageName);
+			return null;
+		}
+	}
+
+	public synchronized void put(String pageName, PageMetaData metaData) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeInt(0);
+		out.writeByte(PUT);
+		writeString(out, pageName);
+		writeString(out, metaData.author);
+		writeString(out, metaData.changenote);
+		out.writeInt(metaData.version);
+		out.writeLong(metaData.commitTime == null ? 0 : metaData.commitTime.getTime());
+
+		append(pageName, bytes.toByteArray(), true);
+	}
+
+	public synchronized void remove(String pageName) throws IOException
+	{
+		if (!entries.containsKey(pageName))
+		{
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeInt(0);
+		out.writeByte(REMOVE);
+		writeString(out, pageName);
+
+		append(pageName, bytes.toByteArray(), false);
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return the bytes of superseded records in the log
+	 */
+	public synchronized long getGarbage()
+	{
+		return length - HEADER_LENGTH - liveBytes;
+	}
+
+	private void append(String pageName, byte[] record, boolean live) throws IOException
+	{
+		ByteBuffer.wrap(record).putInt(0, record.length);
+
+		write(ByteBuffer.wrap(record), length);
+
+		Entry old = live ? entries.put(pageName, new Entry(length, record.length)) : entries.remove(pageName);
+
+		if (old != null)
+		{
+			liveBytes -= old.length;
+		}
+		if (live)
+		{
+			liveBytes += record.length;
+		}
+
+		length += record.length;
+		dirty = true;
+
+		long garbage = getGarbage();
+		if (garbage > MIN_GARBAGE && garbage > liveBytes)
+		{
+			try
+			{
+				compact();
+			} catch (IOException e)
+			{
+				log.error("could not compact " + logFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Copies the live records into a new log.
+	 */
+	public synchronized void compact() throws IOException
+	{
+		log.info("compacting " + logFile + ", " + getGarbage() + " of " + length + " bytes superseded");
+
+		LockFile lock = new LockFile(logFile);
+		if (!lock.lock())
+		{
+			throw new IOException("could not lock " + logFile);
+		}
+
+		Map<String, Entry> compacted = new HashMap<String, Entry>();
+		long offset = HEADER_LENGTH;
+
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(lock.getOutputStream()));
+
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+
+			for (Map.Entry<String, Entry> e : entries.entrySet())
+			{
+				Entry entry = e.getValue();
+
+				ByteBuffer buf = read(entry.offset, entry.length);
+				out.write(buf.array(), 0, entry.length);
+
+				compacted.put(e.getKey(), new Entry(offset, entry.length));
+				offset += entry.length;
+			}
+
+			out.close();
+
+			// the offsets in the index are wrong for the new log, if there is
+			// a crash before it is saved again the whole log is scanned
+			if (indexFile.exists() && !indexFile.delete())
+			{
+				throw new IOException("could not delete " + indexFile);
+			}
+			dirty = true;
+
+			channel.close();
+
+			if (!lock.commit())
+			{
+				throw new IOException("could not write " + logFile);
+			}
+		} finally
+		{
+			lock.unlock();
+
+			if (!channel.isOpen())
+			{
+				raf = new RandomAccessFile(logFile, "rw");
+				channel = raf.getChannel();
+			}
+		}
+
+		if (channel.size() == offset)
+		{
+			entries.putAll(compacted);
+			length = offset;
+			dirty = true;
+
+			save();
+		}
+	}
+
+	/**
+	 * Writes the offset index, if the log has changed since it was last
+	 * written.
+	 */
+	public synchronized void save() throws IOException
+	{
+		if (!dirty)
+		{
+			return;
+		}
+
+		LockFile lock = new LockFile(indexFile);
+		if (!lock.lock())
+		{
+			throw new IOException("could not lock " + indexFile);
+		}
+
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(lock.getOutputStream()));
+
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(length);
+
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> e : entries.entrySet())
+			{
+				writeString(out, e.getKey());
+				out.writeLong(e.getValue().offset);
+				out.writeInt(e.getValue().length);
+			}
+
+			out.writeInt(MAGIC);
+			out.close();
+
+			if (!lock.commit())
+			{
+				throw new IOException("could not write " + indexFile);
+			}
+
+			dirty = false;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public synchronized void close() throws IOException
+	{
+		if (channel == null)
+		{
+			return;
+		}
+
+		try
+		{
+			channel.force(false);
+			save();
+		} finally
+		{
+			raf.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * @return the length of the log covered by the index
+	 */
+	private long load() throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(indexFile, "r");
+
+		try
+		{
+			FileChannel indexChannel = in.getChannel();
+			ByteBuffer buf = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+
+			if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION)
+			{
+				throw new IOException("not a page metadata index: " + indexFile);
+			}
+
+			long indexed = buf.getLong();
+			if (indexed > channel.size())
+			{
+				throw new IOException("page metadata index is ahead of the log: " + indexFile);
+			}
+
+			int n = buf.getInt();
+			for (int i = 0; i < n; i++)
+			{
+				String pageName = readString(buf);
+				long offset = buf.getLong();
+				int len = buf.getInt();
+
+				entries.put(pageName, new Entry(offset, len));
+			}
+
+			if (buf.getInt() != MAGIC)
+			{
+				throw new IOException("truncated page metadata index: " + indexFile);
+			}
+
+			return indexed;
+		} catch (BufferUnderflowException e)
+		{
+			throw new IOException("truncated page metadata index: " + indexFile);
+		} finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the records from offset to the end of the log. A record cut short
+	 * by a crash is truncated.
+	 */
+	private void scan(long offset) throws IOException
+	{
+		long size = channel.size();
+
+		while (offset + 5 <= size)
+		{
+			ByteBuffer head = read(offset, 5);
+			int len = head.getInt();
+			byte type = head.get();
+
+			if (len < 5 || offset + len > size || (type != PUT && type != REMOVE))
+			{
+				break;
+			}
+
+			ByteBuffer buf = read(offset, len);
+			buf.position(5);
+
+			String pageName;
+			try
+			{
+				pageName = readString(buf);
+			} catch (RuntimeException e)
+			{
+				break;
+			}
+
+			if (type == PUT)
+			{
+				entries.put(pageName, new Entry(offset, len));
+			} else
+			{
+				entries.remove(pageName);
+			}
+
+			offset += len;
+			dirty = true;
+		}
+
+		if (offset < size)
+		{
+			log.warn("truncating " + logFile + " from " + size + " to " + offset + " bytes");
+			channel.truncate(offset);
+		}
+
+		length = offset;
+	}
+
+	private ByteBuffer read(long offset, int len) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(len);
+
+		while (buf.hasRemaining())
+		{
+			if (channel.read(buf, offset + buf.position()) < 0)
+			{
+				throw new IOException("unexpected end of " + logFile);
+			}
+		}
+
+		buf.flip();
+		return buf;
+	}
+
+	private void write(ByteBuffer buf, long offset) throws IOException
+	{
+		while (buf.hasRemaining())
+		{
+			channel.write(buf, offset + buf.position());
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		if (s == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] b = s.getBytes(Constants.CHARSET);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer in)
+	{
+		int len = in.getInt();
+		if (len < 0)
+		{
+			return null;
+		}
+		if (len > in.remaining())
+		{
+			throw new BufferUnderflowException();
+		}
+
+		byte[] b = new byte[len];
+		in.get(b);
+		return new String(b, Constants.CHARSET);
+	}
+}
@@ -0,0 +1,86 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * A change of one path in the index, with the content already stored in the
+ * object database. The blob id is the zero id if the path is removed.
+ */
+public class PathChange
+{
+	public final String path;
+
+	public final ObjectId blobId;
+
+	public final long length;
+
+	public final long lastModified;
+
+	/**
+	 * the path this one was moved from, if the same commit removes it
+	 */
+	public final String renamedFrom;
+
+	public PathChange(String path, ObjectId blobId, long length, long lastModified)
+	{
+		this(path, blobId, length, lastModified, null);
+	}
+
+	public PathChange(String path, ObjectId blobId, long length, long lastModified, String renamedFrom)
+	{
+		this.path = path;
+		this.blobId = blobId;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.renamedFrom = renamedFrom;
+	}
+
+	public static PathChange delete(String path)
+	{
+		return new PathChange(path, ObjectId.zeroId(), 0, 0);
+	}
+
+	public boolean isDelete()
+	{
+		return ObjectId.zeroId().equals(blobId);
+	}
+
+	DirCacheEditor.PathEdit toPathEdit()
+	{
+		if (isDelete())
+		{
+			return new DirCacheEditor.DeletePath(path);
+		}
+
+		return new DirCacheEditor.PathEdit(path)
+		{
+			public void apply(DirCacheEntry ent)
+			{
+				ent.setFileMode(FileMode.REGULAR_FILE);
+				ent.setObjectId(blobId);
+				ent.setLength(length);
+				ent.setLastModified(lastModified);
+			}
+		};
+	}
+}
@@ -0,0 +1,71 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * One version of a path: the commit that changed it and the blob it points to
+ * in that commit. The blob id is the zero id if the commit deleted the path.
+ *
+ * A version whose commit is still in the commit queue has no commit id yet,
+ * it carries its change note until it is committed.
+ */
+public class PathVersion
+{
+	public final ObjectId commitId;
+
+	public final ObjectId blobId;
+
+	public final String author;
+
+	/**
+	 * commit time in milliseconds since the epoch
+	 */
+	public final long commitTime;
+
+	public final long size;
+
+	public final String changenote;
+
+	public PathVersion(ObjectId commitId, ObjectId blobId, String author, long commitTime, long size)
+	{
+		this(commitId, blobId, author, commitTime, size, null);
+	}
+
+	public PathVersion(ObjectId commitId, ObjectId blobId, String author, long commitTime, long size,
+			String changenote)
+	{
+		this.commitId = commitId;
+		this.blobId = blobId;
+		this.author = author;
+		this.commitTime = commitTime;
+		this.size = size;
+		this.changenote = changenote;
+	}
+
+	public boolean isPending()
+	{
+		return commitId == null;
+	}
+
+	public boolean isDeleted()
+	{
+		return ObjectId.zeroId().equals(blobId);
+	}
+}
@@ -0,0 +1,220 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Packs the objects of a repository on a low priority background thread.
+ *
+ * Every commit leaves loose objects behind. The thread looks at the object
+ * counts at a fixed interval and repacks, which also writes the pack bitmaps,
+ * and prunes when there are too many loose objects or pack files.
+ *
+ * Refs are not packed, so the ref updates of concurrent commits never wait
+ * for the maintenance. Pruning only removes unreferenced objects older than
+ * two weeks, so objects inserted for a commit that is still queued are kept.
+ */
+public class RepositoryMaintenance implements Runnable
+{
+	private static final Logger log = Logger.getLogger(RepositoryMaintenance.class);
+
+	private final FileRepository repository;
+
+	private final long interval;
+
+	private final long maxLooseObjects;
+
+	private final long maxPackFiles;
+
+	private Thread thread;
+
+	private final Object sleepLock = new Object();
+
+	private boolean stopped;
+
+	private Date lastRun;
+
+	private long lastDuration;
+
+	private long runs;
+
+	private long looseObjects;
+
+	private long packFiles;
+
+	private long packedObjects;
+
+	/**
+	 * @param interval
+	 *            milliseconds between two looks at the object counts
+	 */
+	public RepositoryMaintenance(FileRepository repository, long interval, long maxLooseObjects, long maxPackFiles)
+	{
+		this.repository = repository;
+		this.interval = interval;
+		this.maxLooseObjects = maxLooseObjects;
+		this.maxPackFiles = maxPackFiles;
+	}
+
+	public void start(String name)
+	{
+		thread = new Thread(this, "git maintenance " + name);
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			synchronized (sleepLock)
+			{
+				try
+				{
+					if (!stopped)
+					{
+						sleepLock.wait(interval);
+					}
+				} catch (InterruptedException e)
+				{
+					return;
+				}
+
+				if (stopped)
+				{
+					return;
+				}
+			}
+
+			try
+			{
+				maintain();
+			} catch (Exception e)
+			{
+				log.error("maintenance of " + repository.getDirectory() + " failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Repacks and prunes if there are too many loose objects or pack files.
+	 *
+	 * @return true if the repository was repacked
+	 */
+	public boolean maintain() throws Exception
+	{
+		GC gc = new GC(repository);
+
+		if (!updateStatistics(gc))
+		{
+			return false;
+		}
+
+		log.info("repacking " + repository.getDirectory() + ", " + looseObjects + " loose objects, " + packFiles
+				+ " pack files");
+
+		long start = System.currentTimeMillis();
+
+		gc.repack();
+		gc.prune(Collections.<ObjectId> emptySet());
+
+		long duration = System.currentTimeMillis() - start;
+
+		synchronized (this)
+		{
+			lastRun = new Date(start);
+			lastDuration = duration;
+			runs++;
+		}
+
+		updateStatistics(gc);
+
+		log.info("repacked " + repository.getDirectory() + " in " + duration + " ms");
+
+		return true;
+	}
+
+	/**
+	 * @return true if maintenance is due
+	 */
+	private boolean updateStatistics(GC gc) throws Exception
+	{
+		GC.RepoStatistics statistics = gc.getStatistics();
+
+		synchronized (this)
+		{
+			looseObjects = statistics.numberOfLooseObjects;
+			packFiles = statistics.numberOfPackFiles;
+			packedObjects = statistics.numberOfPackedObjects;
+		}
+
+		return statistics.numberOfLooseObjects > maxLooseObjects || statistics.numberOfPackFiles > maxPackFiles;
+	}
+
+	/**
+	 * Stops the background thread, waiting for a running repack to finish
+	 * rather than interrupting it.
+	 */
+	public void close() throws InterruptedException
+	{
+		synchronized (sleepLock)
+		{
+			stopped = true;
+			sleepLock.notifyAll();
+		}
+
+		if (thread != null)
+		{
+			thread.join();
+		}
+	}
+
+	public synchronized Date getLastRun()
+	{
+		return lastRun;
+	}
+
+	public synchronized long getLastDuration()
+	{
+		return lastDuration;
+	}
+
+	public synchronized long getLooseObjectCount()
+	{
+		return looseObjects;
+	}
+
+	public synchronized long getPackFileCount()
+	{
+		return packFiles;
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("runs=%d, lastRun=%s, lastDuration=%dms, looseObjects=%d, packFiles=%d, packedObjects=%d",
+				runs, lastRun, lastDuration, looseObjects, packFiles, packedObjects);
+	}
+}
@@ -0,0 +1,1181 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Inverted index from words to the blobs that contain them.
+ *
+ * Every blob is indexed once, when the first commit that adds it is walked,
+ * so all versions of all paths can be searched. Each posting list holds blob
+ * numbers in ascending order. The index is saved to {@link #INDEX_FILE} in
+ * the git directory together with the commit it was built up to.
+ *
+ * The blobs of the indexed commit also have their words kept, with a second
+ * inverted index from words to the paths whose current version contains
+ * them, so searching the current versions does not grow with the history.
+ *
+ * The index is brought up to date with HEAD on a background thread, at start
+ * and whenever {@link #requestUpdate()} is called after a commit, walking
+ * only the commits made since. Searches do not wait for it, they see the
+ * index as of the last commit that was applied.
+ */
+public class SearchIndex implements Runnable
+{
+	private static final Logger log = Logger.getLogger(SearchIndex.class);
+
+	public static final String INDEX_FILE = "jspwiki-search.idx";
+
+	private static final int MAGIC = 0x4a575349;
+
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * larger blobs are only found by their name
+	 */
+	private static final int MAX_INDEXED_SIZE = 4 * 1024 * 1024;
+
+	private static final int MIN_WORD_LENGTH = 2;
+
+	private static final int MAX_WORD_LENGTH = 64;
+
+	/**
+	 * A path whose content or name matched a search, with the number of
+	 * matching words as score.
+	 */
+	public static class Hit
+	{
+		public final String path;
+
+		public final ObjectId blobId;
+
+		public final int score;
+
+		Hit(String path, ObjectId blobId, int score)
+		{
+			this.path = path;
+			this.blobId = blobId;
+			this.score = score;
+		}
+	}
+
+	public static final Comparator<Hit> BY_SCORE = new Comparator<Hit>()
+	{
+		public int compare(Hit h1, Hit h2)
+		{
+			return h2.score - h1.score;
+		}
+	};
+
+	/**
+	 * A growing, sorted list of blob numbers.
+	 */
+	private static class Postings
+	{
+		int[] blobs;
+
+		int size;
+
+		Postings(int capacity)
+		{
+			blobs = new int[capacity];
+		}
+
+		void add(int blob)
+		{
+			if (size > 0 && blobs[size - 1] == blob)
+			{
+				return;
+			}
+			if (size == blobs.length)
+			{
+				blobs = Arrays.copyOf(blobs, size * 2);
+			}
+			blobs[size++] = blob;
+		}
+
+		boolean contains(int blob)
+		{
+			return Arrays.binarySearch(blobs, 0, size, blob) >= 0;
+		}
+	}
+
+	private File indexFile;
+
+	private boolean loaded;
+
+	private ObjectId head;
+
+	private boolean dirty;
+
+	private final List<ObjectId> blobs = new ArrayList<ObjectId>();
+
+	private final Map<ObjectId, Integer> blobNumbers = new HashMap<ObjectId, Integer>();
+
+	/**
+	 * the paths that have pointed to each blob
+	 */
+	private final List<String[]> blobPaths = new ArrayList<String[]>();
+
+	private final Map<String, Postings> postings = new HashMap<String, Postings>();
+
+	/**
+	 * the blob each path points to in the indexed commit
+	 */
+	private final Map<String, Integer> current = new HashMap<String, Integer>();
+
+	/**
+	 * words of the file names in the indexed commit
+	 */
+	private final Map<String, Set<String>> names = new HashMap<String, Set<String>>();
+
+	/**
+	 * The words of a blob that is the current version of at least one path.
+	 */
+	private static class CurrentBlob
+	{
+		final String[] words;
+
+		int paths;
+
+		CurrentBlob(Collection<String> words)
+		{
+			this.words = words.toArray(new String[words.size()]);
+		}
+	}
+
+	/**
+	 * the blobs in {@link #current}, by blob number
+	 */
+	private final Map<Integer, CurrentBlob> currentBlobs = new HashMap<Integer, CurrentBlob>();
+
+	/**
+	 * words of the content in the indexed commit, with the paths that contain
+	 * them
+	 */
+	private final Map<String, Set<String>> currentPostings = new HashMap<String, Set<String>>();
+
+	private final Metrics metrics;
+
+	/**
+	 * the read lock is held by searches, the write lock while the changes of
+	 * one commit are applied
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Object updateLock = new Object();
+
+	private boolean updateRequested;
+
+	private boolean updating;
+
+	private boolean stopped;
+
+	private Repository repository;
+
+	private Thread thread;
+
+	/**
+	 * The changes of a path in one commit, blobId is null for a removed path
+	 * and words is null for a blob whose words are known, as it is current
+	 * or added by the same commit.
+	 */
+	private static class Change
+	{
+		final String path;
+
+		final ObjectId blobId;
+
+		final Set<String> words;
+
+		Change(String path, ObjectId blobId, Set<String> words)
+		{
+			this.path = path;
+			this.blobId = blobId;
+			this.words = words;
+		}
+	}
+
+	public SearchIndex(Metrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Starts the background thread, which loads the saved index and brings it
+	 * up to date with HEAD.
+	 */
+	public void start(Repository repository, String name)
+	{
+		this.repository = repository;
+
+		thread = new Thread(this, "git search index " + name);
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+
+		requestUpdate();
+	}
+
+	/**
+	 * Asks the background thread to bring the index up to date with HEAD,
+	 * without waiting for it.
+	 */
+	public void requestUpdate()
+	{
+		synchronized (updateLock)
+		{
+			updateRequested = true;
+			updateLock.notifyAll();
+		}
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			synchronized (updateLock)
+			{
+				try
+				{
+					while (!updateRequested && !stopped)
+					{
+						updateLock.wait();
+					}
+				} catch (InterruptedException e)
+				{
+					return;
+				}
+
+				if (stopped)
+				{
+					return;
+				}
+
+				updateRequested = false;
+				updating = true;
+			}
+
+			try
+			{
+				update(repository);
+			} catch (Exception e)
+			{
+				log.error("could not update the search index of " + repository.getDirectory(), e);
+			} finally
+			{
+				synchronized (updateLock)
+				{
+					updating = false;
+					updateLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until the updates requested before this call are done.
+	 */
+	public void awaitUpdate() throws InterruptedException
+	{
+		synchronized (updateLock)
+		{
+			while ((updateRequested || updating) && thread != null && thread.isAlive())
+			{
+				updateLock.wait(1000);
+			}
+		}
+	}
+
+	/**
+	 * Stops the background thread, waiting for a running update to finish.
+	 */
+	public void close() throws InterruptedException
+	{
+		synchronized (updateLock)
+		{
+			stopped = true;
+			updateLock.notifyAll();
+		}
+
+		if (thread != null)
+		{
+			thread.join();
+		}
+	}
+
+	/**
+	 * Brings the index up to date with HEAD, loading the saved index first if
+	 * this is the first call. The blobs of each commit are read without a
+	 * lock, only applying them to the index excludes searches.
+	 */
+	public synchronized void update(Repository repository) throws IOException
+	{
+		if (!loaded)
+		{
+			indexFile = new File(repository.getDirectory(), INDEX_FILE);
+
+			if (indexFile.exists())
+			{
+				lock.writeLock().lock();
+				try
+				{
+					load();
+				} catch (IOException e)
+				{
+					log.warn("could not read " + indexFile + ", rebuilding it", e);
+					clear();
+				} finally
+				{
+					lock.writeLock().unlock();
+				}
+			}
+
+			loaded = true;
+		}
+
+		ObjectId to = GitController.resolveHead(repository);
+
+		if (to == null || to.equals(head))
+		{
+			return;
+		}
+
+		RevWalk walk = new RevWalk(repository);
+		TreeWalk treeWalk = new TreeWalk(walk.getObjectReader());
+
+		try
+		{
+			RevCommit target = walk.parseCommit(to);
+			RevCommit from = null;
+
+			if (head != null)
+			{
+				try
+				{
+					from = walk.parseCommit(head);
+					if (!walk.isMergedInto(from, target))
+					{
+						from = null;
+					}
+				} catch (MissingObjectException e)
+				{
+					from = null;
+				}
+
+				if (from == null)
+				{
+					log.info(indexFile + " does not match HEAD, rebuilding it");
+
+					lock.writeLock().lock();
+					try
+					{
+						clear();
+					} finally
+					{
+						lock.writeLock().unlock();
+					}
+				}
+
+				walk.reset();
+			}
+
+			walk.sort(RevSort.TOPO);
+			walk.sort(RevSort.REVERSE, true);
+			walk.markStart(target);
+			if (from != null)
+			{
+				walk.markUninteresting(from);
+			}
+
+			int commits = 0;
+
+			RevCommit rev;
+			while ((rev = walk.next()) != null)
+			{
+				treeWalk.reset();
+				treeWalk.setRecursive(true);
+				treeWalk.setFilter(TreeFilter.ANY_DIFF);
+
+				if (rev.getParentCount() == 0)
+				{
+					treeWalk.addTree(new EmptyTreeIterator());
+				} else
+				{
+					treeWalk.addTree(walk.parseCommit(rev.getParent(0)).getTree());
+				}
+				treeWalk.addTree(rev.getTree());
+
+				// only this thread changes the index, so it can be read here
+				// without the lock
+				List<Change> changes = new ArrayList<Change>();
+				Set<ObjectId> read = new HashSet<ObjectId>();
+
+				while (treeWalk.next())
+				{
+					String path = treeWalk.getPathString();
+					ObjectId blobId = treeWalk.getObjectId(1);
+
+					if (ObjectId.zeroId().equals(blobId))
+					{
+						changes.add(new Change(path, null, null));
+					} else if (isCurrent(blobId) || !read.add(blobId))
+					{
+						changes.add(new Change(path, blobId, null));
+					} else
+					{
+						// also an old blob that becomes current again
+						changes.add(new Change(path, blobId, readWords(walk.getObjectReader(), blobId)));
+					}
+				}
+
+				lock.writeLock().lock();
+				try
+				{
+					// additions first, so a blob moved to another path keeps
+					// its words
+					for (Change change : changes)
+					{
+						if (change.blobId != null)
+						{
+							add(change.path, change.blobId, change.words);
+						}
+					}
+
+					for (Change change : changes)
+					{
+						if (change.blobId == null)
+						{
+							remove(change.path);
+						}
+					}
+
+					head = rev.copy();
+					dirty = true;
+				} finally
+				{
+					lock.writeLock().unlock();
+				}
+
+				commits++;
+				metrics.increment(Metrics.Counter.COMMITS_WALKED);
+			}
+
+			log.debug("indexed " + commits + " commits, " + blobs.size() + " blobs, " + postings.size() + " words");
+		} finally
+		{
+			treeWalk.close();
+			walk.close();
+		}
+	}
+
+	/**
+	 * Searches the current version of every path, by content and by name.
+	 *
+	 * @return the matching paths, best first
+	 */
+	public List<Hit> search(Collection<String> required, Collection<String> forbidden,
+			Collection<String> requested)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return doSearch(required, forbidden, requested);
+		} finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private List<Hit> doSearch(Collection<String> required, Collection<String> forbidden,
+			Collection<String> requested)
+	{
+		Map<String, Integer> scores = new HashMap<String, Integer>();
+
+		boolean first = true;
+
+		for (String word : required)
+		{
+			Set<String> matches = getCurrentMatches(word);
+
+			if (first)
+			{
+				for (String path : matches)
+				{
+					scores.put(path, 1);
+				}
+				first = false;
+			} else
+			{
+				scores.keySet().retainAll(matches);
+				for (String path : scores.keySet())
+				{
+					scores.put(path, scores.get(path) + 1);
+				}
+			}
+		}
+
+		for (String word : requested)
+		{
+			for (String path : getCurrentMatches(word))
+			{
+				Integer score = scores.get(path);
+				if (score != null)
+				{
+					scores.put(path, score + 1);
+				} else if (required.isEmpty())
+				{
+					scores.put(path, 1);
+				}
+			}
+		}
+
+		for (String word : forbidden)
+		{
+			scores.keySet().removeAll(getCurrentMatches(word));
+		}
+
+		List<Hit> hits = new ArrayList<Hit>(scores.size());
+		for (Map.Entry<String, Integer> e : scores.entrySet())
+		{
+			Integer blob = current.get(e.getKey());
+			hits.add(new Hit(e.getKey(), blobs.get(blob), e.getValue()));
+		}
+
+		Collections.sort(hits, BY_SCORE);
+
+		return hits;
+	}
+
+	/**
+	 * Searches the content of every version of every path.
+	 *
+	 * @return every path and blob that matched, best first
+	 */
+	public List<Hit> searchHistory(Collection<String> required, Collection<String> forbidden,
+			Collection<String> requested)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return doSearchHistory(required, forbidden, requested);
+		} finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private List<Hit> doSearchHistory(Collection<String> required, Collection<String> forbidden,
+			Collection<String> requested)
+	{
+		Map<Integer, Integer> scores = new HashMap<Integer, Integer>();
+
+		boolean first = true;
+
+		for (String word : required)
+		{
+			Postings p = postings.get(word);
+
+			if (first)
+			{
+				if (p != null)
+				{
+					for (int i = 0; i < p.size; i++)
+					{
+						scores.put(p.blobs[i], 1);
+					}
+				}
+				first = false;
+			} else
+			{
+				for (Iterator<Map.Entry<Integer, Integer>> it = scores.entrySet().iterator(); it.hasNext();)
+				{
+					Map.Entry<Integer, Integer> e = it.next();
+					if (p == null || !p.contains(e.getKey()))
+					{
+						it.remove();
+					} else
+					{
+						e.setValue(e.getValue() + 1);
+					}
+				}
+			}
+		}
+
+		for (String word : requested)
+		{
+			Postings p = postings.get(word);
+			if (p == null)
+			{
+				continue;
+			}
+
+			for (int i = 0; i < p.size; i++)
+			{
+				Integer score = scores.get(p.blobs[i]);
+				if (score != null)
+				{
+					scores.put(p.blobs[i], score + 1);
+				} else if (required.isEmpty())
+				{
+					scores.put(p.blobs[i], 1);
+				}
+			}
+		}
+
+		for (String word : forbidden)
+		{
+			Postings p = postings.get(word);
+			if (p == null)
+			{
+				continue;
+			}
+
+			for (int i = 0; i < p.size; i++)
+			{
+				scores.remove(p.blobs[i]);
+			}
+		}
+
+		List<Hit> hits = new ArrayList<Hit>();
+		for (Map.Entry<Integer, Integer> e : scores.entrySet())
+		{
+			for (String path : blobPaths.get(e.getKey()))
+			{
+				hits.add(new Hit(path, blobs.get(e.getKey()), e.getValue()));
+			}
+		}
+
+		Collections.sort(hits, BY_SCORE);
+
+		return hits;
+	}
+
+	/**
+	 * Splits text into lower case words.
+	 */
+	public static Set<String> words(String text)
+	{
+		Set<String> words = new LinkedHashSet<String>();
+
+		int start = -1;
+		int n = text.length();
+
+		for (int i = 0; i <= n; i++)
+		{
+			boolean letter = i < n && Character.isLetterOrDigit(text.charAt(i));
+
+			if (letter && start < 0)
+			{
+				start = i;
+			} else if (!letter && start >= 0)
+			{
+				int len = i - start;
+				if (len >= MIN_WORD_LENGTH && len <= MAX_WORD_LENGTH)
+				{
+					words.add(text.substring(start, i).toLowerCase());
+				}
+				start = -1;
+			}
+		}
+
+		return words;
+	}
+
+	/**
+	 * Writes the index to the git directory, if it has changed since it was
+	 * last written. Waits for a running update. An empty index, of a
+	 * repository without commits, is not written.
+	 */
+	public synchronized void save() throws IOException
+	{
+		if (!dirty || indexFile == null)
+		{
+			return;
+		}
+
+		if (head == null)
+		{
+			// cleared, as a corrupt index of an empty repository
+			if (indexFile.exists() && !indexFile.delete())
+			{
+				throw new IOException("could not delete " + indexFile);
+			}
+
+			dirty = false;
+			return;
+		}
+
+		LockFile lock = new LockFile(indexFile);
+		if (!lock.lock())
+		{
+			throw new IOException("could not lock " + indexFile);
+		}
+
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(lock.getOutputStream()));
+
+			byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			writeId(out, head, id);
+
+			out.writeInt(blobs.size());
+			for (int i = 0; i < blobs.size(); i++)
+			{
+				writeId(out, blobs.get(i), id);
+
+				String[] paths = blobPaths.get(i);
+				out.writeInt(paths.length);
+				for (String path : paths)
+				{
+					writeString(out, path);
+				}
+			}
+
+			out.writeInt(current.size());
+			for (Map.Entry<String, Integer> e : current.entrySet())
+			{
+				writeString(out, e.getKey());
+				out.writeInt(e.getValue());
+			}
+
+			out.writeInt(postings.size());
+			for (Map.Entry<String, Postings> e : postings.entrySet())
+			{
+				writeString(out, e.getKey());
+
+				Postings p = e.getValue();
+				out.writeInt(p.size);
+				for (int i = 0; i < p.size; i++)
+				{
+					out.writeInt(p.blobs[i]);
+				}
+			}
+
+			out.writeInt(MAGIC);
+			out.close();
+
+			if (!lock.commit())
+			{
+				throw new IOException("could not write " + indexFile);
+			}
+
+			dirty = false;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public String toString()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return String.format("blobs=%d, words=%d, paths=%d", blobs.size(), postings.size(), current.size());
+		} finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private Set<String> getCurrentMatches(String word)
+	{
+		Set<String> matches = new HashSet<String>();
+
+		Set<String> containing = currentPostings.get(word);
+		if (containing != null)
+		{
+			matches.addAll(containing);
+		}
+
+		Set<String> named = names.get(word);
+		if (named != null)
+		{
+			matches.addAll(named);
+		}
+
+		return matches;
+	}
+
+	private boolean isCurrent(ObjectId blobId)
+	{
+		Integer blob = blobNumbers.get(blobId);
+
+		return blob != null && currentBlobs.containsKey(blob);
+	}
+
+	/**
+	 * @param words
+	 *            the words of the blob, unless it is current already
+	 */
+	private void add(String path, ObjectId blobId, Set<String> words)
+	{
+		Integer blob = blobNumbers.get(blobId);
+
+		if (blob == null)
+		{
+			blob = blobs.size();
+			blobId = blobId.copy();
+
+			blobs.add(blobId);
+			blobNumbers.put(blobId, blob);
+			blobPaths.add(new String[] { path });
+
+			for (String word : words)
+			{
+				Postings p = postings.get(word);
+				if (p == null)
+				{
+					p = new Postings(1);
+					postings.put(word, p);
+				}
+				p.add(blob);
+			}
+		} else
+		{
+			String[] paths = blobPaths.get(blob);
+			if (!Arrays.asList(paths).contains(path))
+			{
+				paths = Arrays.copyOf(paths, paths.length + 1);
+				paths[paths.length - 1] = path;
+				blobPaths.set(blob, paths);
+			}
+		}
+
+		Integer old = current.put(path, blob);
+		if (old == null)
+		{
+			addName(path);
+		} else if (old.equals(blob))
+		{
+			return;
+		} else
+		{
+			removeCurrent(path, old);
+		}
+
+		addCurrent(path, blob, words);
+	}
+
+	private void remove(String path)
+	{
+		Integer old = current.remove(path);
+		if (old != null)
+		{
+			removeName(path);
+			removeCurrent(path, old);
+		}
+	}
+
+	/**
+	 * @param words
+	 *            the words of the blob, used if it is not current yet
+	 */
+	private void addCurrent(String path, Integer blob, Collection<String> words)
+	{
+		CurrentBlob currentBlob = currentBlobs.get(blob);
+		if (currentBlob == null)
+		{
+			currentBlob = new CurrentBlob(words);
+			currentBlobs.put(blob, currentBlob);
+		}
+		currentBlob.paths++;
+
+		for (String word : currentBlob.words)
+		{
+			Set<String> paths = currentPostings.get(word);
+			if (paths == null)
+			{
+				paths = new HashSet<String>();
+				currentPostings.put(word, paths);
+			}
+			paths.add(path);
+		}
+	}
+
+	private void removeCurrent(String path, Integer blob)
+	{
+		CurrentBlob currentBlob = currentBlobs.get(blob);
+
+		for (String word : currentBlob.words)
+		{
+			Set<String> paths = currentPostings.get(word);
+			if (paths != null)
+			{
+				paths.remove(path);
+				if (paths.isEmpty())
+				{
+					currentPostings.remove(word);
+				}
+			}
+		}
+
+		if (--currentBlob.paths == 0)
+		{
+			currentBlobs.remove(blob);
+		}
+	}
+
+	private void addName(String path)
+	{
+		for (String word : words(decode(path)))
+		{
+			Set<String> paths = names.get(word);
+			if (paths == null)
+			{
+				paths = new HashSet<String>();
+				names.put(word, paths);
+			}
+			paths.add(path);
+		}
+	}
+
+	private void removeName(String path)
+	{
+		for (String word : words(decode(path)))
+		{
+			Set<String> paths = names.get(word);
+			if (paths != null)
+			{
+				paths.remove(path);
+				if (paths.isEmpty())
+				{
+					names.remove(word);
+				}
+			}
+		}
+	}
+
+	private Set<String> readWords(ObjectReader reader, ObjectId blobId) throws IOException
+	{
+		ObjectLoader loader = reader.open(blobId, Constants.OBJ_BLOB);
+		metrics.increment(Metrics.Counter.OBJECTS_OPENED);
+
+		if (loader.getSize() > MAX_INDEXED_SIZE)
+		{
+			return Collections.emptySet();
+		}
+
+		byte[] content = loader.getCachedBytes();
+		metrics.add(Metrics.Counter.BYTES_INFLATED, content.length);
+
+		if (RawText.isBinary(content))
+		{
+			return Collections.emptySet();
+		}
+
+		return words(new String(content, Constants.CHARSET));
+	}
+
+	/**
+	 * File names are URL encoded page and attachment names.
+	 */
+	private static String decode(String path)
+	{
+		try
+		{
+			return URLDecoder.decode(path, "UTF-8");
+		} catch (IllegalArgumentException e)
+		{
+			return path;
+		} catch (UnsupportedEncodingException e)
+		{
+			return path;
+		}
+	}
+
+	private void clear()
+	{
+		head = null;
+		blobs.clear();
+		blobNumbers.clear();
+		blobPaths.clear();
+		postings.clear();
+		current.clear();
+		names.clear();
+		currentBlobs.clear();
+		currentPostings.clear();
+		dirty = true;
+	}
+
+	private void load() throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION)
+			{
+				throw new IOException("not a search index: " + indexFile);
+			}
+
+			byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+
+			head = readId(buf, id);
+
+			int n = buf.getInt();
+			for (int i = 0; i < n; i++)
+			{
+				ObjectId blobId = readId(buf, id);
+				blobs.add(blobId);
+				blobNumbers.put(blobId, i);
+
+				String[] paths = new String[buf.getInt()];
+				for (int j = 0; j < paths.length; j++)
+				{
+					paths[j] = readString(buf);
+				}
+				blobPaths.add(paths);
+			}
+
+			n = buf.getInt();
+			for (int i = 0; i < n; i++)
+			{
+				String path = readString(buf);
+				int blob = buf.getInt();
+
+				if (blob < 0 || blob >= blobs.size())
+				{
+					throw new IOException("corrupt search index: " + indexFile);
+				}
+
+				current.put(path, blob);
+				addName(path);
+			}
+
+			Map<Integer, List<String>> currentWords = new HashMap<Integer, List<String>>();
+			for (Integer blob : current.values())
+			{
+				currentWords.put(blob, new ArrayList<String>());
+			}
+
+			n = buf.getInt();
+			for (int i = 0; i < n; i++)
+			{
+				String word = readString(buf);
+
+				int size = buf.getInt();
+
+				Postings p = new Postings(Math.max(1, size));
+				buf.asIntBuffer().get(p.blobs, 0, size);
+				buf.position(buf.position() + 4 * size);
+				p.size = size;
+
+				postings.put(word, p);
+
+				for (int j = 0; j < size; j++)
+				{
+					List<String> words = currentWords.get(p.blobs[j]);
+					if (words != null)
+					{
+						words.add(word);
+					}
+				}
+			}
+
+			for (Map.Entry<String, Integer> e : current.entrySet())
+			{
+				addCurrent(e.getKey(), e.getValue(), currentWords.get(e.getValue()));
+			}
+
+			if (buf.getInt() != MAGIC)
+			{
+				throw new IOException("truncated search index: " + indexFile);
+			}
+		} catch (BufferUnderflowException e)
+		{
+			throw new IOException("truncated search index: " + indexFile);
+		} finally
+		{
+			raf.close();
+		}
+	}
+
+	private static void writeId(DataOutputStream out, ObjectId objectId, byte[] buf) throws IOException
+	{
+		objectId.copyRawTo(buf, 0);
+		out.write(buf);
+	}
+
+	private static ObjectId readId(ByteBuffer in, byte[] buf)
+	{
+		in.get(buf);
+		return ObjectId.fromRaw(buf);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] b = s.getBytes(Constants.CHARSET);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer in)
+	{
+		byte[] b = new byte[in.getInt()];
+		in.get(b);
+		return new String(b, Constants.CHARSET);
+	}
+}
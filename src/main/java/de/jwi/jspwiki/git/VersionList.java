@@ -0,0 +1,251 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * The versions of one path, oldest first, held in parallel arrays instead of
+ * one object per version: the raw commit and blob ids, the commit times and
+ * sizes, and the author names, which are shared between all lists.
+ * PathVersion objects are only created by {@link #get(int)}.
+ *
+ * Versions whose commit is still queued follow the committed ones and are
+ * kept as objects, there are few of them.
+ *
+ * A VersionList is immutable, a change creates a new list.
+ */
+class VersionList extends AbstractList<PathVersion> implements RandomAccess
+{
+	/**
+	 * bytes per version in ids, the commit id followed by the blob id
+	 */
+	static final int ID_BYTES = 2 * Constants.OBJECT_ID_LENGTH;
+
+	private static final PathVersion[] NO_PENDING = new PathVersion[0];
+
+	static final VersionList EMPTY = new VersionList(0, new byte[0], new long[0], new long[0], new String[0],
+			NO_PENDING);
+
+	private final int committed;
+
+	private final byte[] ids;
+
+	private final long[] commitTimes;
+
+	private final long[] sizes;
+
+	private final String[] authors;
+
+	private final PathVersion[] pending;
+
+	private VersionList(int committed, byte[] ids, long[] commitTimes, long[] sizes, String[] authors,
+			PathVersion[] pending)
+	{
+		this.committed = committed;
+		this.ids = ids;
+		this.commitTimes = commitTimes;
+		this.sizes = sizes;
+		this.authors = authors;
+		this.pending = pending;
+	}
+
+	public int size()
+	{
+		return committed + pending.length;
+	}
+
+	public PathVersion get(int i)
+	{
+		if (i < 0 || i >= size())
+		{
+			throw new IndexOutOfBoundsException(i + " of " + size());
+		}
+
+		if (i >= committed)
+		{
+			return pending[i - committed];
+		}
+
+		int o = i * ID_BYTES;
+
+		return new PathVersion(ObjectId.fromRaw(ids, o), ObjectId.fromRaw(ids, o + Constants.OBJECT_ID_LENGTH),
+				authors[i], commitTimes[i], sizes[i]);
+	}
+
+	int getCommittedCount()
+	{
+		return committed;
+	}
+
+	String getAuthor(int i)
+	{
+		return authors[i];
+	}
+
+	long getCommitTime(int i)
+	{
+		return commitTimes[i];
+	}
+
+	long getSize(int i)
+	{
+		return sizes[i];
+	}
+
+	/**
+	 * Writes the commit id and the blob id of committed version i.
+	 */
+	void writeIds(DataOutput out, int i) throws IOException
+	{
+		out.write(ids, i * ID_BYTES, ID_BYTES);
+	}
+
+	/**
+	 * @return this list with version appended
+	 */
+	VersionList addPending(PathVersion version)
+	{
+		PathVersion[] p = Arrays.copyOf(pending, pending.length + 1);
+		p[pending.length] = version;
+
+		return new VersionList(committed, ids, commitTimes, sizes, authors, p);
+	}
+
+	/**
+	 * Replaces the oldest pending version with a committed one, or appends
+	 * the committed version if there is no pending one. A null version drops
+	 * the oldest pending version.
+	 *
+	 * @return the new list, or this list if nothing changed
+	 */
+	VersionList replacePending(PathVersion version)
+	{
+		PathVersion[] p = pending;
+
+		if (p.length > 0)
+		{
+			p = p.length == 1 ? NO_PENDING : Arrays.copyOfRange(p, 1, p.length);
+		} else if (version == null)
+		{
+			return this;
+		}
+
+		if (version == null)
+		{
+			return new VersionList(committed, ids, commitTimes, sizes, authors, p);
+		}
+
+		int n = committed + 1;
+
+		byte[] i = Arrays.copyOf(ids, n * ID_BYTES);
+		version.commitId.copyRawTo(i, committed * ID_BYTES);
+		version.blobId.copyRawTo(i, committed * ID_BYTES + Constants.OBJECT_ID_LENGTH);
+
+		long[] t = Arrays.copyOf(commitTimes, n);
+		t[committed] = version.commitTime;
+
+		long[] s = Arrays.copyOf(sizes, n);
+		s[committed] = version.size;
+
+		String[] a = Arrays.copyOf(authors, n);
+		a[committed] = version.author;
+
+		return new VersionList(n, i, t, s, a, p);
+	}
+
+	/**
+	 * Collects committed versions while the index is built or loaded.
+	 */
+	static class Builder
+	{
+		private int n;
+
+		private byte[] ids = new byte[ID_BYTES];
+
+		private long[] commitTimes = new long[1];
+
+		private long[] sizes = new long[1];
+
+		private String[] authors = new String[1];
+
+		void add(ObjectId commitId, ObjectId blobId, String author, long commitTime, long size)
+		{
+			grow();
+
+			commitId.copyRawTo(ids, n * ID_BYTES);
+			blobId.copyRawTo(ids, n * ID_BYTES + Constants.OBJECT_ID_LENGTH);
+
+			set(author, commitTime, size);
+		}
+
+		/**
+		 * @param rawIds
+		 *            the commit id followed by the blob id
+		 */
+		void add(byte[] rawIds, String author, long commitTime, long size)
+		{
+			grow();
+
+			System.arraycopy(rawIds, 0, ids, n * ID_BYTES, ID_BYTES);
+
+			set(author, commitTime, size);
+		}
+
+		int size()
+		{
+			return n;
+		}
+
+		private void set(String author, long commitTime, long size)
+		{
+			commitTimes[n] = commitTime;
+			sizes[n] = size;
+			authors[n] = author;
+			n++;
+		}
+
+		private void grow()
+		{
+			if (n < sizes.length)
+			{
+				return;
+			}
+
+			int capacity = sizes.length * 2;
+
+			ids = Arrays.copyOf(ids, capacity * ID_BYTES);
+			commitTimes = Arrays.copyOf(commitTimes, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+			authors = Arrays.copyOf(authors, capacity);
+		}
+
+		VersionList build()
+		{
+			return new VersionList(n, Arrays.copyOf(ids, n * ID_BYTES), Arrays.copyOf(commitTimes, n),
+					Arrays.copyOf(sizes, n), Arrays.copyOf(authors, n), NO_PENDING);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+/**
+ * Caches blob contents by their id, on the heap and in direct buffers.
+ */
+public class BlobCacheTest extends TestCase
+{
+	public void testHeap() throws Exception
+	{
+		assertCached(new BlobCache(1600, false));
+	}
+
+	public void testDirect() throws Exception
+	{
+		assertCached(new BlobCache(1600, true));
+	}
+
+	private void assertCached(BlobCache cache) throws Exception
+	{
+		byte[] content = "some content".getBytes("UTF-8");
+		ObjectId blobId = idFor(content);
+
+		assertNull(cache.open(blobId));
+
+		cache.put(blobId, content);
+
+		// each stream reads the whole content, independent of the others
+		InputStream in1 = cache.open(blobId);
+		InputStream in2 = cache.open(blobId);
+
+		assertEquals(content.length, in1.available());
+		assertEquals('s', in1.read());
+		assertEquals(4, in1.skip(4));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(content, 5, content.length), IOUtils.toByteArray(in1)));
+		assertEquals(-1, in1.read());
+
+		assertTrue(Arrays.equals(content, IOUtils.toByteArray(in2)));
+
+		assertEquals(content.length, cache.getResidentBytes());
+		assertEquals(2 / 3.0, cache.getHitRatio(), 0.001);
+	}
+
+	/**
+	 * A blob larger than a sixteenth of the cache is not cached, so it cannot
+	 * push out many smaller ones.
+	 */
+	public void testLargeBlob() throws Exception
+	{
+		BlobCache cache = new BlobCache(1600, false);
+
+		byte[] content = new byte[101];
+		ObjectId blobId = idFor(content);
+
+		assertFalse(cache.isCacheable(content.length));
+		assertTrue(cache.isCacheable(100));
+
+		cache.put(blobId, content);
+
+		assertNull(cache.open(blobId));
+		assertEquals(0, cache.getResidentBytes());
+	}
+
+	/**
+	 * The resident bytes stay below the size of the cache, the least recently
+	 * used blobs are evicted.
+	 */
+	public void testEviction() throws Exception
+	{
+		BlobCache cache = new BlobCache(1600, false);
+
+		ObjectId first = null;
+		for (int i = 0; i < 100; i++)
+		{
+			byte[] content = new byte[100];
+			Arrays.fill(content, (byte) i);
+
+			ObjectId blobId = idFor(content);
+			if (first == null)
+			{
+				first = blobId;
+			}
+
+			cache.put(blobId, content);
+
+			assertTrue(cache.getResidentBytes() <= 1600);
+		}
+
+		assertNull(cache.open(first));
+	}
+
+	private static ObjectId idFor(byte[] content)
+	{
+		return new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, content);
+	}
+}
@@ -0,0 +1,200 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Weighs, evicts and counts the entries of a cache whose values weigh their
+ * length.
+ */
+public class BoundedCacheTest extends TestCase
+{
+	private static final BoundedCache.Weigher<String> LENGTH = new BoundedCache.Weigher<String>()
+	{
+		public long weigh(String value)
+		{
+			return value.length();
+		}
+	};
+
+	public void testWeight() throws Exception
+	{
+		BoundedCache<String, String> cache = new BoundedCache<String, String>(100, LENGTH);
+
+		cache.put("a", "aaaaaaaaaa");
+		cache.put("b", "bbbbbbbbbb");
+		cache.put("c", "cccccccccc");
+
+		assertEquals(3, cache.size());
+		assertEquals(30, cache.getWeight());
+
+		// a new value replaces the weight of the old one
+		cache.put("a", "aaaaa");
+		assertEquals(25, cache.getWeight());
+		assertEquals("aaaaa", cache.get("a"));
+
+		cache.remove("b");
+		assertEquals(15, cache.getWeight());
+		assertNull(cache.get("b"));
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeight());
+	}
+
+	/**
+	 * A put over the maximum weight evicts the least recently used entries
+	 * down to the low water mark, 90% of the maximum.
+	 */
+	public void testEvictLeastRecentlyUsed() throws Exception
+	{
+		BoundedCache<String, String> cache = new BoundedCache<String, String>(100, LENGTH);
+
+		for (char c = 'a'; c <= 'j'; c++)
+		{
+			cache.put(String.valueOf(c), "0123456789");
+			Thread.sleep(1);
+		}
+
+		assertEquals(100, cache.getWeight());
+		assertEquals(0, cache.getEvictionCount());
+
+		// used again, so b and c are the least recently used now
+		assertNotNull(cache.get("a"));
+		Thread.sleep(1);
+
+		cache.put("k", "0123456789");
+
+		assertEquals(2, cache.getEvictionCount());
+		assertEquals(90, cache.getWeight());
+		assertEquals(9, cache.size());
+
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNull(cache.get("c"));
+		assertNotNull(cache.get("d"));
+		assertNotNull(cache.get("k"));
+	}
+
+	/**
+	 * A value heavier than the whole cache is not kept, nor is the value it
+	 * replaces.
+	 */
+	public void testTooHeavy() throws Exception
+	{
+		BoundedCache<String, String> cache = new BoundedCache<String, String>(10, LENGTH);
+
+		cache.put("a", "aaaaa");
+		cache.put("a", "aaaaaaaaaaa");
+
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.getWeight());
+		assertEquals(0, cache.getEvictionCount());
+	}
+
+	public void testHitsAndMisses() throws Exception
+	{
+		BoundedCache<String, String> cache = new BoundedCache<String, String>(100, LENGTH);
+
+		cache.put("a", "a");
+
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	/**
+	 * The weight stays the sum of the weights of the entries while threads
+	 * put, read and remove at the same time.
+	 */
+	public void testConcurrent() throws Exception
+	{
+		final BoundedCache<Integer, String> cache = new BoundedCache<Integer, String>(1000, LENGTH);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++)
+		{
+			final Random random = new Random(t);
+
+			Thread thread = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						for (int i = 0; i < 20000; i++)
+						{
+							Integer key = random.nextInt(200);
+
+							switch (random.nextInt(4))
+							{
+							case 0:
+								cache.remove(key);
+								break;
+							case 1:
+								cache.get(key);
+								break;
+							default:
+								char[] value = new char[1 + random.nextInt(20)];
+								cache.put(key, new String(value));
+							}
+						}
+					} catch (Throwable e)
+					{
+						synchronized (errors)
+						{
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		long weight = 0;
+		for (int key = 0; key < 200; key++)
+		{
+			String value = cache.get(key);
+			if (value != null)
+			{
+				weight += value.length();
+			}
+		}
+
+		assertEquals(weight, cache.getWeight());
+		assertTrue(cache.getWeight() <= cache.getMaxWeight());
+		assertTrue(cache.getEvictionCount() > 0);
+	}
+}
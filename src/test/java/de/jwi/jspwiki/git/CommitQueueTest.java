@@ -0,0 +1,247 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Commits through the commit queue, in async and bounded mode.
+ */
+public class CommitQueueTest extends GitTestCase
+{
+	private static final int SAVES = 50;
+
+	/**
+	 * the change notes of the saves made, in order
+	 */
+	private final List<String> saved = new ArrayList<String>();
+
+	/**
+	 * Commits are recorded in the order they were queued, and their versions
+	 * are in the history as soon as they are queued.
+	 */
+	public void testOrder() throws Exception
+	{
+		openController(GitController.COMMITMODE_ASYNC);
+
+		for (int i = 1; i <= SAVES; i++)
+		{
+			save(i % 2 == 0 ? "Even.txt" : "Odd.txt", "save " + i);
+
+			assertEquals((i + 1) / 2, gitController.getVersionCount("Odd.txt"));
+		}
+
+		gitController.flush();
+
+		assertEquals(0, gitController.getCommitQueue().getDepth());
+		assertEquals(SAVES, gitController.getCommitQueue().getCommitCount());
+
+		assertEquals(saved, getLog());
+
+		// the versions were committed with the content saved
+		assertEquals("save 49", IOUtils.toString(gitController.readHistoryObject("Odd.txt", 25), "UTF-8"));
+	}
+
+	/**
+	 * A bounded queue makes a save wait for room, nothing is lost or
+	 * reordered.
+	 */
+	public void testBounded() throws Exception
+	{
+		Properties properties = new Properties();
+		properties.setProperty(GitController.PROP_COMMITMAXLAG, "2");
+
+		openController(GitController.COMMITMODE_BOUNDED, properties);
+
+		for (int i = 1; i <= SAVES; i++)
+		{
+			save("Page.txt", "save " + i);
+
+			// the queued commits, the one being recorded and the waiting save
+			assertTrue(gitController.getCommitQueue().getDepth() <= 4);
+		}
+
+		gitController.flush();
+
+		assertTrue(gitController.getCommitQueue().getMaxDepth() <= 4);
+		assertEquals(SAVES, gitController.getVersionCount("Page.txt"));
+		assertEquals(saved, getLog());
+	}
+
+	/**
+	 * Closing records the commits still queued and rejects later ones.
+	 */
+	public void testClose() throws Exception
+	{
+		openController(GitController.COMMITMODE_ASYNC);
+
+		for (int i = 1; i <= SAVES; i++)
+		{
+			save("Page.txt", "save " + i);
+		}
+
+		CommitQueue commitQueue = gitController.getCommitQueue();
+		commitQueue.close();
+
+		assertEquals(0, commitQueue.getDepth());
+		assertEquals(saved, getLog());
+
+		try
+		{
+			save("Page.txt", "too late");
+			fail("committed after close");
+		} catch (GitException e)
+		{
+			// expected
+		}
+
+		// the rejected save left no pending version behind, nor changed the
+		// file
+		assertEquals(SAVES, gitController.getVersionCount("Page.txt"));
+		assertEquals("save " + SAVES, FileUtils.readFileToString(new File(dir, "Page.txt"), "UTF-8"));
+		assertEquals(saved, getLog());
+	}
+
+	/**
+	 * A commit that cannot be recorded keeps its version, which matches the
+	 * file, and is retried. Saves are refused and flush fails until it is
+	 * recorded.
+	 */
+	public void testFailedCommit() throws Exception
+	{
+		openController(GitController.COMMITMODE_ASYNC);
+
+		CommitQueue commitQueue = gitController.getCommitQueue();
+
+		save("Page.txt", "save 1");
+		gitController.flush();
+
+		File indexLock = new File(new File(dir, ".git"), "index.lock");
+		assertTrue(indexLock.createNewFile());
+
+		try
+		{
+			save("Page.txt", "save 2");
+
+			awaitFailure(commitQueue, true);
+
+			assertEquals(2, gitController.getVersionCount("Page.txt"));
+			assertEquals("save 2", FileUtils.readFileToString(new File(dir, "Page.txt"), "UTF-8"));
+
+			try
+			{
+				gitController.flush();
+				fail("flushed while a commit is failing");
+			} catch (GitException e)
+			{
+				// expected
+			}
+
+			try
+			{
+				save("Page.txt", "refused");
+				fail("saved while a commit is failing");
+			} catch (GitException e)
+			{
+				// expected
+			}
+
+			// the refused save left the file alone
+			assertEquals("save 2", FileUtils.readFileToString(new File(dir, "Page.txt"), "UTF-8"));
+		} finally
+		{
+			indexLock.delete();
+		}
+
+		awaitFailure(commitQueue, false);
+
+		gitController.flush();
+
+		assertTrue(commitQueue.getFailureCount() > 0);
+		assertEquals(saved, getLog());
+
+		save("Page.txt", "save 3");
+		gitController.flush();
+
+		assertEquals(3, gitController.getVersionCount("Page.txt"));
+		assertEquals(saved, getLog());
+	}
+
+	/**
+	 * Closing while a commit is failing reports the commits that were not
+	 * recorded.
+	 */
+	public void testCloseWhileFailing() throws Exception
+	{
+		openController(GitController.COMMITMODE_ASYNC);
+
+		CommitQueue commitQueue = gitController.getCommitQueue();
+
+		File indexLock = new File(new File(dir, ".git"), "index.lock");
+		assertTrue(indexLock.createNewFile());
+
+		try
+		{
+			save("Page.txt", "save 1");
+
+			awaitFailure(commitQueue, true);
+
+			try
+			{
+				commitQueue.close();
+				fail("closed while a commit is failing");
+			} catch (GitException e)
+			{
+				// expected
+			}
+		} finally
+		{
+			indexLock.delete();
+		}
+
+		assertNull(resolve("HEAD"));
+		assertEquals("save 1", FileUtils.readFileToString(new File(dir, "Page.txt"), "UTF-8"));
+	}
+
+	private static void awaitFailure(CommitQueue commitQueue, boolean failing) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+
+		while ((commitQueue.getFailure() != null) != failing)
+		{
+			assertTrue("failing " + failing, System.currentTimeMillis() < deadline);
+
+			Thread.sleep(10);
+		}
+	}
+
+	protected PageMetaData save(String name, String text) throws Exception
+	{
+		PageMetaData metaData = super.save(name, text);
+
+		saved.add(text);
+
+		return metaData;
+	}
+}
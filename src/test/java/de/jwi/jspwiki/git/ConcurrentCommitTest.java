@@ -0,0 +1,250 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Saves from many threads at once in sync commit mode while other threads
+ * read the history. Every save must be committed with the content it wrote,
+ * and reads must not wait for a commit that holds the write lock.
+ */
+public class ConcurrentCommitTest extends GitTestCase
+{
+	private static final int WRITERS = 8;
+
+	private static final int SAVES = 25;
+
+	private static final int READERS = 4;
+
+	/**
+	 * saves of the shared page vary in size, so a file that is rewritten
+	 * while it is hashed does not match its announced length
+	 */
+	private static final int MIN_SIZE = 20 * 1024;
+
+	private static final int MAX_SIZE = 260 * 1024;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		openController(GitController.COMMITMODE_SYNC);
+	}
+
+	public void testConcurrentSaves() throws Exception
+	{
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final AtomicInteger reads = new AtomicInteger();
+
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int w = 0; w < WRITERS; w++)
+		{
+			final int writer = w;
+			writers.add(new Thread("writer " + w)
+			{
+				public void run()
+				{
+					try
+					{
+						startSignal.await();
+
+						for (int s = 1; s <= SAVES; s++)
+						{
+							// every writer has its own page and they all share one
+							save("Page" + writer + ".txt", "version " + s + " by " + writer, MIN_SIZE);
+							save("Shared.txt", "save " + s + " by " + writer, MIN_SIZE
+									+ (writer * SAVES + s) * (MAX_SIZE - MIN_SIZE) / (WRITERS * SAVES));
+						}
+					} catch (Throwable t)
+					{
+						failures.add(t);
+					}
+				}
+			});
+		}
+
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int r = 0; r < READERS; r++)
+		{
+			readers.add(new Thread("reader " + r)
+			{
+				public void run()
+				{
+					try
+					{
+						startSignal.await();
+
+						while (writing.get())
+						{
+							read();
+
+							reads.incrementAndGet();
+						}
+					} catch (Throwable t)
+					{
+						failures.add(t);
+					}
+				}
+			});
+		}
+
+		for (Thread t : writers)
+		{
+			t.start();
+		}
+		for (Thread t : readers)
+		{
+			t.start();
+		}
+
+		startSignal.countDown();
+
+		for (Thread t : writers)
+		{
+			t.join();
+		}
+
+		writing.set(false);
+
+		for (Thread t : readers)
+		{
+			t.join();
+		}
+
+		assertEquals("failures: " + failures, 0, failures.size());
+
+		for (int w = 0; w < WRITERS; w++)
+		{
+			assertEquals(SAVES, gitController.getVersionCount("Page" + w + ".txt"));
+		}
+
+		// every save of the shared page has a different text
+		assertEquals(WRITERS * SAVES, gitController.getVersionCount("Shared.txt"));
+
+		// the file is left with the content of the last commit
+		InputStream in = gitController.readHistoryObject("Shared.txt", WRITERS * SAVES);
+		try
+		{
+			assertTrue(Arrays.equals(IOUtils.toByteArray(in), FileUtils.readFileToByteArray(new File(dir, "Shared.txt"))));
+		} finally
+		{
+			in.close();
+		}
+
+		assertTrue("no reads while writing", reads.get() > 0);
+	}
+
+	/**
+	 * A commit that cannot lock the index, as when another git process holds
+	 * it, keeps retrying with the write lock held. Reads made meanwhile must
+	 * return before the commit does.
+	 */
+	public void testReadsDoNotWaitForCommits() throws Exception
+	{
+		save("Page.txt", "version 1", MIN_SIZE);
+
+		read();
+
+		File indexLock = new File(new File(dir, ".git"), "index.lock");
+		assertTrue(indexLock.createNewFile());
+
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+		Thread writer = new Thread("writer")
+		{
+			public void run()
+			{
+				try
+				{
+					save("Page.txt", "version 2", MIN_SIZE);
+				} catch (Throwable t)
+				{
+					failures.add(t);
+				}
+			}
+		};
+
+		try
+		{
+			writer.start();
+
+			while (gitController.getMetrics().get(Metrics.Counter.COMMIT_RETRIES) == 0)
+			{
+				assertTrue("commit did not retry", writer.isAlive());
+				Thread.sleep(1);
+			}
+
+			read();
+
+			assertTrue("reads waited for the commit", writer.isAlive());
+		} finally
+		{
+			indexLock.delete();
+
+			writer.join();
+		}
+
+		assertEquals("failures: " + failures, 0, failures.size());
+		assertEquals(2, gitController.getVersionCount("Page.txt"));
+	}
+
+	private void read() throws Exception
+	{
+		gitController.getHeadFiles();
+		gitController.getVersionHistory("Shared.txt", true);
+
+		int versions = gitController.getVersionCount("Shared.txt");
+		if (versions > 0)
+		{
+			InputStream in = gitController.readHistoryObject("Shared.txt", versions);
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves text padded to size bytes the way the providers do, from the bytes
+	 * in memory.
+	 */
+	private void save(String name, String text, int size) throws Exception
+	{
+		PageMetaData metaData = metaData(text);
+		metaData.author = Thread.currentThread().getName();
+
+		byte[] bytes = new byte[size];
+		Arrays.fill(bytes, (byte) ' ');
+		byte[] t = text.getBytes("UTF-8");
+		System.arraycopy(t, 0, bytes, 0, t.length);
+
+		save(name, bytes, metaData);
+	}
+}
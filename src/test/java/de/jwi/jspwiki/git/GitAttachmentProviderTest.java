@@ -0,0 +1,254 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.WikiProvider;
+import org.apache.wiki.api.exceptions.ProviderException;
+import org.apache.wiki.attachment.Attachment;
+
+/**
+ * Stores and reads attachments through the attachment provider of a wiki.
+ */
+public class GitAttachmentProviderTest extends GitTestCase
+{
+	private GitAttachmentProvider provider;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		provider = openAttachmentProvider(getWikiProperties());
+	}
+
+	/**
+	 * Versions cannot be deleted from the history, the refusal is not counted
+	 * as an error.
+	 */
+	public void testDeleteVersionNotSupported() throws Exception
+	{
+		put("Main", "a.txt", "data 1");
+		put("Main", "a.txt", "data 2");
+
+		Attachment attachment = attachment("Main", "a.txt");
+		attachment.setVersion(1);
+
+		try
+		{
+			provider.deleteVersion(attachment);
+			fail("deleted a version");
+		} catch (ProviderException e)
+		{
+			// expected
+		}
+
+		for (Metrics.Operation operation : Metrics.Operation.values())
+		{
+			assertEquals(operation.name(), 0, provider.metrics.getErrors(operation));
+		}
+
+		assertEquals(2, provider.getVersionHistory(attachment("Main", "a.txt")).size());
+	}
+
+	/**
+	 * Every version has its own size, taken from the history index, also
+	 * for versions committed with git and after the index is reloaded.
+	 */
+	public void testVersionHistorySizes() throws Exception
+	{
+		put("Main", "a.txt", "1");
+		put("Main", "a.txt", "three");
+
+		assertSizes(provider.getVersionHistory(attachment("Main", "a.txt")), 5, 1);
+
+		commit("Main/a.txt", "committed with git");
+		provider = openAttachmentProvider(getWikiProperties());
+
+		assertSizes(provider.getVersionHistory(attachment("Main", "a.txt")), 18, 5, 1);
+		assertEquals(5, provider.getAttachmentInfo(new WikiPage(engine, "Main"), "a.txt", 2).getSize());
+	}
+
+	/**
+	 * Lists the latest version of each attachment changed after a time, newest
+	 * first. Deleted attachments and pages are left out.
+	 */
+	public void testListAllChanged() throws Exception
+	{
+		commit("Main.txt", "page text");
+		provider = openAttachmentProvider(getWikiProperties());
+
+		// commit times are in seconds
+		long t0 = (System.currentTimeMillis() / 1000 - 3600) * 1000;
+
+		put("Main", "a.txt", "a1", new Date(t0));
+		put("Main", "b.txt", "b1", new Date(t0));
+		put("Other", "c.txt", "c1", new Date(t0));
+
+		Date since = new Date(t0 + 60 * 1000);
+
+		put("Main", "a.txt", "a2", new Date(t0 + 2 * 60 * 1000));
+		put("Main", "a.txt", "a3 longer", new Date(t0 + 3 * 60 * 1000));
+		put("Other", "c.txt", "c2", new Date(t0 + 4 * 60 * 1000));
+
+		Attachment deleted = attachment("Main", "b.txt");
+		deleted.setLastModified(new Date(t0 + 5 * 60 * 1000));
+		provider.deleteAttachment(deleted);
+
+		List<?> changed = provider.listAllChanged(since);
+
+		assertEquals(2, changed.size());
+
+		Attachment c = (Attachment) changed.get(0);
+		assertEquals("Other/c.txt", c.getName());
+		assertEquals(2, c.getVersion());
+		assertEquals("c2", c.getAttribute(WikiPage.CHANGENOTE));
+		assertEquals(t0 + 4 * 60 * 1000, c.getLastModified().getTime());
+
+		Attachment a = (Attachment) changed.get(1);
+		assertEquals("Main/a.txt", a.getName());
+		assertEquals(3, a.getVersion());
+		assertEquals(9, a.getSize());
+		assertEquals("alice", a.getAuthor());
+
+		assertTrue(provider.listAllChanged(new Date(t0 + 6 * 60 * 1000)).isEmpty());
+	}
+
+	/**
+	 * A window of the history, newest first, and single versions read without
+	 * the whole history.
+	 */
+	public void testVersionHistoryWindow() throws Exception
+	{
+		for (int i = 1; i <= 5; i++)
+		{
+			put("Main", "a.txt", "v" + i);
+		}
+
+		List<Attachment> window = provider.getVersionHistory(attachment("Main", "a.txt"), 1, 2);
+
+		assertEquals(2, window.size());
+		assertEquals(4, window.get(0).getVersion());
+		assertEquals("v4", window.get(0).getAttribute(WikiPage.CHANGENOTE));
+		assertEquals(3, window.get(1).getVersion());
+
+		assertTrue(provider.getVersionHistory(attachment("Main", "a.txt"), 5, 2).isEmpty());
+
+		WikiPage main = new WikiPage(engine, "Main");
+		assertEquals(2, provider.getAttachmentInfo(main, "a.txt", 2).getVersion());
+		assertEquals(5, provider.getAttachmentInfo(main, "a.txt", WikiProvider.LATEST_VERSION).getVersion());
+		assertNull(provider.getAttachmentInfo(main, "a.txt", 6));
+		assertNull(provider.getAttachmentInfo(main, "b.txt", WikiProvider.LATEST_VERSION));
+	}
+
+	/**
+	 * An old version is read from the history, a version that does not exist
+	 * is refused without looking at the history.
+	 */
+	public void testAttachmentDataVersion() throws Exception
+	{
+		put("Main", "a.txt", "v1");
+		put("Main", "a.txt", "v2");
+
+		assertEquals("v2", read("Main", "a.txt", WikiProvider.LATEST_VERSION));
+		assertEquals("v1", read("Main", "a.txt", 1));
+		assertEquals("v2", read("Main", "a.txt", 2));
+
+		for (int version : new int[] { 0, 3 })
+		{
+			try
+			{
+				read("Main", "a.txt", version);
+				fail("read version " + version);
+			} catch (ProviderException e)
+			{
+				// expected
+			}
+		}
+	}
+
+	private String read(String pageName, String fileName, int version) throws Exception
+	{
+		Attachment attachment = attachment(pageName, fileName);
+		attachment.setVersion(version);
+
+		InputStream in = provider.getAttachmentData(attachment);
+		try
+		{
+			return IOUtils.toString(in, "UTF-8");
+		} finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * @param sizes
+	 *            newest first
+	 */
+	private static void assertSizes(List<?> versions, long... sizes)
+	{
+		assertEquals(sizes.length, versions.size());
+
+		for (int i = 0; i < sizes.length; i++)
+		{
+			Attachment version = (Attachment) versions.get(i);
+
+			assertEquals(sizes.length - i, version.getVersion());
+			assertEquals(sizes[i], version.getSize());
+		}
+	}
+
+	private Attachment attachment(String pageName, String fileName)
+	{
+		Attachment attachment = new Attachment(engine, pageName, fileName);
+
+		attachment.setAuthor("alice");
+		attachment.setLastModified(new Date());
+
+		return attachment;
+	}
+
+	/**
+	 * Stores text as a new version of the attachment, the text is the change
+	 * note.
+	 */
+	private Attachment put(String pageName, String fileName, String text) throws Exception
+	{
+		return put(pageName, fileName, text, new Date());
+	}
+
+	private Attachment put(String pageName, String fileName, String text, Date lastModified) throws Exception
+	{
+		Attachment attachment = attachment(pageName, fileName);
+		attachment.setLastModified(lastModified);
+		attachment.setAttribute(WikiPage.CHANGENOTE, text);
+
+		byte[] bytes = text.getBytes("UTF-8");
+		attachment.setSize(bytes.length);
+
+		provider.putAttachmentData(attachment, new ByteArrayInputStream(bytes));
+
+		return attachment;
+	}
+}
@@ -0,0 +1,291 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Stores, commits and moves files through the controller of a new
+ * repository.
+ */
+public class GitControllerTest extends GitTestCase
+{
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		openController(GitController.COMMITMODE_SYNC);
+	}
+
+	public void testStore() throws Exception
+	{
+		assertStored("Page.txt", "some text", 9);
+	}
+
+	/**
+	 * The length of an upload is announced by the client, the stored object
+	 * has the bytes actually sent.
+	 */
+	public void testStoreWrongLength() throws Exception
+	{
+		assertStored("Short.txt", "longer than announced", 6);
+		assertStored("Long.txt", "shorter", 100);
+		assertStored("Unknown.txt", "length not known", -1);
+		assertStored("Empty.txt", "", 5);
+
+		// larger than the buffer of the inserter, streamed
+		char[] large = new char[20000];
+		Arrays.fill(large, 'x');
+		assertStored("Large.txt", new String(large), 10000);
+		assertStored("Larger.txt", new String(large), 30000);
+	}
+
+	private void assertStored(String name, String text, long length) throws Exception
+	{
+		byte[] bytes = text.getBytes("UTF-8");
+		File f = new File(dir, name);
+
+		PathChange change = gitController.store(f, new ByteArrayInputStream(bytes), length);
+
+		assertEquals(name, change.path);
+		assertEquals(bytes.length, change.length);
+		assertTrue(Arrays.equals(bytes, FileUtils.readFileToByteArray(f)));
+		assertTrue(Arrays.equals(bytes, git.getRepository().open(change.blobId).getBytes()));
+
+		gitController.commitChanges(Collections.singletonList(change), metaData("store " + name));
+
+		assertEquals(1, gitController.getVersionCount(name));
+		assertEquals(text, IOUtils.toString(gitController.readHistoryObject(name, 1), "UTF-8"));
+
+		// the index entry has the length of the file, not the announced one
+		assertTrue(git.status().call().isClean());
+	}
+
+	/**
+	 * The history of a file is answered from the history index, newest first.
+	 * Commits made with git are added when the controller is opened again.
+	 */
+	public void testVersionHistory() throws Exception
+	{
+		save("A.txt", "a1");
+		save("B.txt", "b1");
+		save("A.txt", "a2");
+
+		commit("A.txt", "a3", "bob");
+
+		openController(GitController.COMMITMODE_SYNC);
+
+		List<PageMetaData> history = gitController.getVersionHistory("A.txt", true);
+
+		assertEquals(3, history.size());
+		assertEquals(3, gitController.getVersionCount("A.txt"));
+
+		String[] changenotes = { "a3", "a2", "a1" };
+		String[] authors = { "bob", "alice", "alice" };
+		for (int i = 0; i < 3; i++)
+		{
+			PageMetaData metaData = history.get(i);
+
+			assertEquals("A.txt", metaData.fileName);
+			assertEquals(3 - i, metaData.version);
+			assertEquals(changenotes[i], metaData.changenote);
+			assertEquals(authors[i], metaData.author);
+			assertEquals(2, metaData.fileSize);
+		}
+
+		assertEquals(1, gitController.getVersionCount("B.txt"));
+		assertEquals(0, gitController.getVersionCount("C.txt"));
+		assertTrue(gitController.getVersionHistory("C.txt", false).isEmpty());
+	}
+
+	/**
+	 * Every version is read by the blob id kept in the history index, a large
+	 * one is streamed instead of cached.
+	 */
+	public void testReadHistoryObject() throws Exception
+	{
+		save("A.txt", "a1");
+		save("A.txt", "a2");
+
+		char[] large = new char[2 * 1024 * 1024];
+		Arrays.fill(large, 'x');
+		save("A.txt", new String(large));
+
+		save("A.txt", "a4");
+
+		assertTrue(new File(dir, "A.txt").delete());
+		gitController.commit(new File(dir, "A.txt"), metaData("delete"));
+
+		assertEquals("a1", IOUtils.toString(gitController.readHistoryObject("A.txt", 1), "UTF-8"));
+		assertEquals("a2", IOUtils.toString(gitController.readHistoryObject("A.txt", 2), "UTF-8"));
+		assertEquals(new String(large), IOUtils.toString(gitController.readHistoryObject("A.txt", 3), "UTF-8"));
+		assertEquals("a4", IOUtils.toString(gitController.readHistoryObject("A.txt", 4), "UTF-8"));
+
+		// the second read of a cached version
+		assertEquals("a1", IOUtils.toString(gitController.readHistoryObject("A.txt", 1), "UTF-8"));
+
+		// the delete is a version without content
+		assertEquals(5, gitController.getVersionCount("A.txt"));
+		assertNoHistoryObject("A.txt", 5);
+
+		assertNoHistoryObject("A.txt", 0);
+		assertNoHistoryObject("A.txt", 6);
+		assertNoHistoryObject("B.txt", 1);
+	}
+
+	private void assertNoHistoryObject(String name, int version) throws Exception
+	{
+		try
+		{
+			gitController.readHistoryObject(name, version).close();
+			fail("read version " + version + " of " + name);
+		} catch (GitException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Only the files given are committed, without scanning the work tree. A
+	 * directory is compared with the index: its changed files are committed
+	 * and the files deleted from it are removed.
+	 */
+	public void testCommitFiles() throws Exception
+	{
+		write("A.txt", "a1");
+		write("Untracked.txt", "u");
+		write("Page-att/x.txt", "x1");
+		write("Page-att/y.txt", "y1");
+
+		gitController.commit(Arrays.asList(new File(dir, "A.txt"), new File(dir, "Page-att")), metaData("add"));
+
+		assertNotNull(resolve("HEAD:A.txt"));
+		assertNotNull(resolve("HEAD:Page-att/x.txt"));
+		assertNotNull(resolve("HEAD:Page-att/y.txt"));
+		assertNull(resolve("HEAD:Untracked.txt"));
+
+		ObjectId y = resolve("HEAD:Page-att/y.txt");
+
+		// another length, so the change is seen within the same millisecond
+		write("Page-att/x.txt", "x2 longer");
+		write("Page-att/z.txt", "z1");
+		assertTrue(new File(dir, "Page-att/y.txt").delete());
+
+		gitController.commit(new File(dir, "Page-att"), metaData("change"));
+
+		assertEquals(2, getLog().size());
+		assertEquals(2, gitController.getVersionCount("Page-att/x.txt"));
+		assertEquals(2, gitController.getVersionCount("Page-att/y.txt"));
+		assertEquals(1, gitController.getVersionCount("Page-att/z.txt"));
+		assertEquals(1, gitController.getVersionCount("A.txt"));
+		assertNull(resolve("HEAD:Page-att/y.txt"));
+		assertEquals(y, resolve("HEAD~1:Page-att/y.txt"));
+
+		// the index matches the work tree, the file not given is untracked
+		Status status = git.status().call();
+		assertTrue(status.getUncommittedChanges().isEmpty());
+		assertEquals(Collections.singleton("Untracked.txt"), status.getUntracked());
+	}
+
+	private void write(String name, String text) throws Exception
+	{
+		File f = new File(dir, name);
+		f.getParentFile().mkdirs();
+
+		FileUtils.writeStringToFile(f, text, "UTF-8");
+	}
+
+	/**
+	 * A moved file is committed as one commit that reuses its blob, its
+	 * history continues the one of the old name.
+	 */
+	public void testMove() throws Exception
+	{
+		save("A.txt", "a1");
+		save("A.txt", "a2");
+
+		ObjectId blobId = resolve("HEAD:A.txt");
+
+		assertTrue(new File(dir, "A.txt").renameTo(new File(dir, "B.txt")));
+		gitController.move(new File(dir, "A.txt"), new File(dir, "B.txt"), metaData("move"));
+
+		assertEquals(3, getLog().size());
+		assertNull(resolve("HEAD:A.txt"));
+		assertEquals(blobId, resolve("HEAD:B.txt"));
+
+		assertEquals(3, gitController.getVersionCount("B.txt"));
+		assertEquals("a1", IOUtils.toString(gitController.readHistoryObject("B.txt", 1), "UTF-8"));
+		assertEquals("a2", IOUtils.toString(gitController.readHistoryObject("B.txt", 3), "UTF-8"));
+		assertTrue(git.status().call().isClean());
+	}
+
+	public void testMoveDirectory() throws Exception
+	{
+		save("Page-att/x.txt", "x1");
+		save("Page-att/y.txt", "y1");
+		save("Page-att/y.txt", "y2");
+
+		ObjectId x = resolve("HEAD:Page-att/x.txt");
+		ObjectId y = resolve("HEAD:Page-att/y.txt");
+
+		assertTrue(new File(dir, "Page-att").renameTo(new File(dir, "Other-att")));
+		gitController.move(new File(dir, "Page-att"), new File(dir, "Other-att"), metaData("move"));
+
+		assertEquals(4, getLog().size());
+		assertNull(resolve("HEAD:Page-att"));
+		assertEquals(x, resolve("HEAD:Other-att/x.txt"));
+		assertEquals(y, resolve("HEAD:Other-att/y.txt"));
+
+		assertEquals(2, gitController.getVersionCount("Other-att/x.txt"));
+		assertEquals(3, gitController.getVersionCount("Other-att/y.txt"));
+		assertTrue(git.status().call().isClean());
+	}
+
+	/**
+	 * A file moved while its saves are still queued has the history of the
+	 * old name before the commits are recorded.
+	 */
+	public void testMoveQueued() throws Exception
+	{
+		openController(GitController.COMMITMODE_ASYNC);
+
+		save("A.txt", "a1");
+		save("A.txt", "a2");
+
+		assertTrue(new File(dir, "A.txt").renameTo(new File(dir, "B.txt")));
+		gitController.move(new File(dir, "A.txt"), new File(dir, "B.txt"), metaData("move"));
+
+		assertEquals(3, gitController.getVersionCount("B.txt"));
+
+		gitController.flush();
+
+		assertEquals(3, getLog().size());
+		assertEquals(3, gitController.getVersionCount("B.txt"));
+		assertEquals("a2", IOUtils.toString(gitController.readHistoryObject("B.txt", 3), "UTF-8"));
+		assertTrue(git.status().call().isClean());
+	}
+}
@@ -0,0 +1,98 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.wiki.WikiEngine;
+
+/**
+ * Renders the diffs of two texts as HTML table rows.
+ */
+public class GitDiffProviderTest extends TestCase
+{
+	private GitDiffProvider provider;
+
+	protected void setUp() throws Exception
+	{
+		provider = new GitDiffProvider();
+		provider.initialize(new WikiEngine(new Properties()), new Properties());
+	}
+
+	public void testEqual() throws Exception
+	{
+		assertEquals("", provider.makeDiffHtml(null, "a\nb\n", "a\nb\n"));
+		assertEquals("", provider.makeDiffHtml(null, null, ""));
+	}
+
+	public void testChanged() throws Exception
+	{
+		String html = provider.makeDiffHtml(null, "a\nb\nc\n", "a\nB\nc\n");
+
+		assertContains(html, "At line 2 changed 1 line to 1 line");
+		assertContains(html, "<tr><td class=\"diffrem\">- b</td></tr>");
+		assertContains(html, "<tr><td class=\"diffadd\">+ B</td></tr>");
+		assertFalse(html.contains("- a"));
+		assertFalse(html.contains("- c"));
+	}
+
+	public void testAddedAndRemoved() throws Exception
+	{
+		String html = provider.makeDiffHtml(null, "a\nb\n", "a\nb\nc\nd\n");
+
+		assertContains(html, "At line 3 added 2 lines");
+		assertContains(html, "+ c");
+		assertContains(html, "+ d");
+
+		html = provider.makeDiffHtml(null, "a\nb\nc\n", "c\n");
+
+		assertContains(html, "At line 1 removed 2 lines");
+		assertContains(html, "- a");
+		assertContains(html, "- b");
+
+		// no old text is an empty one
+		assertContains(provider.makeDiffHtml(null, null, "new\n"), "+ new");
+	}
+
+	public void testEntities() throws Exception
+	{
+		String html = provider.makeDiffHtml(null, "a\n", "<b>&\n");
+
+		assertContains(html, "+ &lt;b&gt;&amp;");
+	}
+
+	/**
+	 * The same pair of texts is rendered once.
+	 */
+	public void testCached() throws Exception
+	{
+		String html = provider.makeDiffHtml(null, "a\nb\n", "a\nc\n");
+
+		assertSame(html, provider.makeDiffHtml(null, "a\nb\n", "a\nc\n"));
+		assertNotSame(html, provider.makeDiffHtml(null, "a\nc\n", "a\nb\n"));
+
+		assertContains(provider.getProviderInfo(), "hits=1");
+	}
+
+	private static void assertContains(String html, String expected)
+	{
+		assertTrue(html, html.contains(expected));
+	}
+}
@@ -0,0 +1,267 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.providers.WikiPageProvider;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Saves and reads pages through the page provider of a wiki.
+ */
+public class GitFileProviderTest extends GitTestCase
+{
+	private static final int LATEST = WikiPageProvider.LATEST_VERSION;
+
+	private GitFileProvider provider;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		provider = openPageProvider(getWikiProperties());
+	}
+
+	/**
+	 * The latest text is read again when the file was changed outside the
+	 * wiki after it was cached.
+	 */
+	public void testTextChangedOnDisk() throws Exception
+	{
+		provider.putPageText(page("Main", "alice", "first"), "saved text");
+
+		assertEquals("saved text", provider.getPageText("Main", LATEST));
+
+		File f = new File(dir, "Main.txt");
+		FileUtils.writeStringToFile(f, "changed outside the wiki", "UTF-8");
+
+		assertEquals("changed outside the wiki", provider.getPageText("Main", LATEST));
+		assertEquals("changed outside the wiki", provider.getPageText("Main", LATEST));
+
+		// same length, only the modification time tells
+		long lastModified = f.lastModified();
+		FileUtils.writeStringToFile(f, "CHANGED OUTSIDE THE WIKI", "UTF-8");
+		f.setLastModified(lastModified + 2000);
+
+		assertEquals("CHANGED OUTSIDE THE WIKI", provider.getPageText("Main", LATEST));
+
+		// the saved version is still in the history
+		assertEquals("saved text", provider.getPageText("Main", 1));
+	}
+
+	/**
+	 * Pages committed with git, as in a clone, get author, time and change
+	 * note from the commit, like their version history.
+	 */
+	public void testCatalogWithoutStoredMetaData() throws Exception
+	{
+		RevCommit commit = commit("Main.txt", "written with git", "bob");
+
+		provider = openPageProvider(getWikiProperties());
+
+		WikiPage page = provider.getPageInfo("Main", LATEST);
+
+		assertEquals(1, page.getVersion());
+		assertEquals("bob", page.getAuthor());
+		assertEquals("written with git", page.getAttribute(WikiPage.CHANGENOTE));
+		assertEquals(commit.getCommitTime() * 1000L, page.getLastModified().getTime());
+
+		assertPageInfo(page, (WikiPage) provider.getVersionHistory("Main").get(0));
+	}
+
+	/**
+	 * A page changed with git after the wiki saved it gets the change note of
+	 * the newer commit, not the stored one.
+	 */
+	public void testCatalogAfterChangeOutsideWiki() throws Exception
+	{
+		provider.putPageText(page("Main", "alice", "saved in the wiki"), "text 1");
+		provider.putPageText(page("Other", "alice", "other page"), "other");
+
+		commit("Main.txt", "changed with git", "bob");
+
+		provider = openPageProvider(getWikiProperties());
+
+		WikiPage page = provider.getPageInfo("Main", LATEST);
+
+		assertEquals(2, page.getVersion());
+		assertEquals("bob", page.getAuthor());
+		assertEquals("changed with git", page.getAttribute(WikiPage.CHANGENOTE));
+		assertPageInfo(page, (WikiPage) provider.getVersionHistory("Main").get(0));
+
+		// the stored metadata of unchanged pages is used
+		page = provider.getPageInfo("Other", LATEST);
+		assertEquals("alice", page.getAuthor());
+		assertEquals("other page", page.getAttribute(WikiPage.CHANGENOTE));
+
+		assertEquals(2, provider.getPageCount());
+	}
+
+	/**
+	 * The latest change of each page changed after a time, newest first, with
+	 * the kind of change and the old name of a moved page.
+	 */
+	public void testAllChangedSince() throws Exception
+	{
+		// commit times are in seconds
+		long t0 = (System.currentTimeMillis() / 1000 - 3600) * 1000;
+
+		put("Main", "m1", t0);
+		put("Old", "o1", t0);
+		put("Gone", "g1", t0);
+		put("Unchanged", "u1", t0);
+
+		Date since = new Date(t0 + 60 * 1000);
+
+		put("Main", "m2", t0 + 2 * 60 * 1000);
+		put("Main", "m3 longer", t0 + 3 * 60 * 1000);
+
+		// the move and the delete are committed with the time of the page
+		put("Old", "o2", t0 + 4 * 60 * 1000);
+		provider.movePage("Old", "New");
+
+		put("Gone", "g2", t0 + 5 * 60 * 1000);
+		provider.deletePage("Gone");
+
+		List<?> changed = new ArrayList<Object>(provider.getAllChangedSince(since));
+
+		assertEquals(3, changed.size());
+
+		WikiPage gone = (WikiPage) changed.get(0);
+		assertEquals("Gone", gone.getName());
+		assertEquals("DELETE", gone.getAttribute(GitFileProvider.ATTR_CHANGETYPE));
+		assertEquals(3, gone.getVersion());
+
+		WikiPage moved = (WikiPage) changed.get(1);
+		assertEquals("New", moved.getName());
+		assertEquals("RENAME", moved.getAttribute(GitFileProvider.ATTR_CHANGETYPE));
+		assertEquals("Old", moved.getAttribute(GitFileProvider.ATTR_OLDNAME));
+		assertEquals(3, moved.getVersion());
+
+		WikiPage main = (WikiPage) changed.get(2);
+		assertEquals("Main", main.getName());
+		assertEquals("MODIFY", main.getAttribute(GitFileProvider.ATTR_CHANGETYPE));
+		assertEquals(3, main.getVersion());
+		assertEquals(9, main.getSize());
+		assertEquals("m3 longer", main.getAttribute(WikiPage.CHANGENOTE));
+		assertEquals(t0 + 3 * 60 * 1000, main.getLastModified().getTime());
+
+		assertTrue(provider.getAllChangedSince(new Date(t0 + 6 * 60 * 1000)).isEmpty());
+	}
+
+	/**
+	 * A window of the history, newest first, and single versions read without
+	 * the whole history.
+	 */
+	public void testVersionHistoryWindow() throws Exception
+	{
+		for (int i = 1; i <= 10; i++)
+		{
+			provider.putPageText(page("Main", "alice", "v" + i), "text " + i);
+		}
+
+		assertVersions(provider.getVersionHistory("Main", 2, 3), 8, 7, 6);
+		assertVersions(provider.getVersionHistory("Main", 8, 5), 2, 1);
+		assertVersions(provider.getVersionHistory("Main", -1, 2), 10, 9);
+		assertVersions(provider.getVersionHistory("Main", 10, 5));
+		assertVersions(provider.getVersionHistory("Main", 0, 0));
+		assertEquals(10, provider.getVersionHistory("Main").size());
+
+		WikiPage page = provider.getPageInfo("Main", 4);
+		assertEquals(4, page.getVersion());
+		assertEquals("v4", page.getAttribute(WikiPage.CHANGENOTE));
+
+		assertEquals(10, provider.getPageInfo("Main", LATEST).getVersion());
+		assertNull(provider.getPageInfo("Main", 11));
+		assertNull(provider.getPageInfo("Missing", 1));
+	}
+
+	/**
+	 * Versions are checked against the version count of the history index,
+	 * which counts queued commits and the versions before a move.
+	 */
+	public void testPageExistsVersion() throws Exception
+	{
+		Properties properties = getWikiProperties();
+		properties.setProperty(GitController.PROP_COMMITMODE, GitController.COMMITMODE_ASYNC);
+		provider = openPageProvider(properties);
+
+		provider.putPageText(page("Main", "alice", "v1"), "text 1");
+		provider.putPageText(page("Main", "alice", "v2"), "text 2");
+
+		assertTrue(provider.pageExists("Main", LATEST));
+		assertTrue(provider.pageExists("Main", 1));
+		assertTrue(provider.pageExists("Main", 2));
+		assertFalse(provider.pageExists("Main", 3));
+		assertFalse(provider.pageExists("Missing", LATEST));
+		assertFalse(provider.pageExists("Missing", 1));
+
+		provider.movePage("Main", "Moved");
+
+		assertFalse(provider.pageExists("Main", 1));
+		assertTrue(provider.pageExists("Moved", 3));
+		assertFalse(provider.pageExists("Moved", 4));
+
+		provider.gitController.flush();
+
+		assertEquals(3, getLog().size());
+		assertTrue(provider.pageExists("Moved", 3));
+		assertFalse(provider.pageExists("Moved", 4));
+	}
+
+	/**
+	 * @param versions
+	 *            newest first, the change note of version i is vi
+	 */
+	private static void assertVersions(List<WikiPage> pages, int... versions)
+	{
+		assertEquals(versions.length, pages.size());
+
+		for (int i = 0; i < versions.length; i++)
+		{
+			assertEquals(versions[i], pages.get(i).getVersion());
+			assertEquals("v" + versions[i], pages.get(i).getAttribute(WikiPage.CHANGENOTE));
+		}
+	}
+
+	/**
+	 * Saves text as a new version of the page, the text is the change note.
+	 */
+	private void put(String name, String text, long lastModified) throws Exception
+	{
+		WikiPage page = page(name, "alice", text);
+		page.setLastModified(new Date(lastModified));
+
+		provider.putPageText(page, text);
+	}
+
+	private static void assertPageInfo(WikiPage expected, WikiPage actual)
+	{
+		assertEquals(expected.getVersion(), actual.getVersion());
+		assertEquals(expected.getAuthor(), actual.getAuthor());
+		assertEquals(expected.getAttribute(WikiPage.CHANGENOTE), actual.getAttribute(WikiPage.CHANGENOTE));
+		assertEquals(expected.getLastModified(), actual.getLastModified());
+	}
+}
@@ -0,0 +1,263 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.providers.AbstractFileProvider;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * A new repository in a temporary directory, changed with plain git commands,
+ * through a {@link GitController} or through the providers of a wiki.
+ */
+public abstract class GitTestCase extends TestCase
+{
+	protected File dir;
+
+	protected Git git;
+
+	/**
+	 * the controller opened by {@link #openController(String)}, closed in
+	 * tearDown
+	 */
+	protected GitController gitController;
+
+	/**
+	 * the wiki opened by {@link #openEngine(Properties)}, shut down in tearDown with
+	 * the providers it was given to
+	 */
+	protected WikiEngine engine;
+
+	protected void setUp() throws Exception
+	{
+		dir = File.createTempFile("gitfileprovider-test", "");
+		dir.delete();
+
+		git = Git.init().setDirectory(dir).call();
+	}
+
+	protected void tearDown() throws Exception
+	{
+		if (engine != null)
+		{
+			engine.shutdown();
+		}
+
+		if (gitController != null)
+		{
+			gitController.close();
+		}
+
+		git.close();
+
+		FileUtils.deleteDirectory(dir);
+	}
+
+	/**
+	 * Opens a controller on the repository, without maintenance, and closes
+	 * the one opened before.
+	 */
+	protected GitController openController(String commitMode) throws Exception
+	{
+		return openController(commitMode, new Properties());
+	}
+
+	protected GitController openController(String commitMode, Properties properties) throws Exception
+	{
+		if (gitController != null)
+		{
+			gitController.close();
+			gitController = null;
+		}
+
+		properties.setProperty(GitController.PROP_COMMITMODE, commitMode);
+		if (properties.getProperty(GitController.PROP_MAINTENANCEINTERVAL) == null)
+		{
+			properties.setProperty(GitController.PROP_MAINTENANCEINTERVAL, "0");
+		}
+
+		GitController controller = new GitController(dir);
+		controller.configure(properties);
+		controller.init();
+
+		gitController = controller;
+
+		return controller;
+	}
+
+	/**
+	 * @return the properties of a wiki that keeps its pages and attachments
+	 *         in the repository, without maintenance
+	 */
+	protected Properties getWikiProperties()
+	{
+		Properties properties = new Properties();
+
+		properties.setProperty(AbstractFileProvider.PROP_PAGEDIR, dir.getPath());
+		properties.setProperty(GitAttachmentProvider.PROP_STORAGEDIR, dir.getPath());
+		properties.setProperty(GitController.PROP_MAINTENANCEINTERVAL, "0");
+
+		return properties;
+	}
+
+	/**
+	 * Opens a wiki, shutting down the one opened before and its providers.
+	 */
+	protected WikiEngine openEngine(Properties properties) throws Exception
+	{
+		if (engine != null)
+		{
+			engine.shutdown();
+			engine = null;
+		}
+
+		engine = new WikiEngine(properties);
+
+		return engine;
+	}
+
+	/**
+	 * Opens a wiki and a page provider on the repository, as after a restart
+	 * if one was opened before.
+	 */
+	protected GitFileProvider openPageProvider(Properties properties) throws Exception
+	{
+		openEngine(properties);
+
+		GitFileProvider provider = new GitFileProvider();
+		provider.initialize(engine, properties);
+
+		return provider;
+	}
+
+	protected GitAttachmentProvider openAttachmentProvider(Properties properties) throws Exception
+	{
+		openEngine(properties);
+
+		GitAttachmentProvider provider = new GitAttachmentProvider();
+		provider.initialize(engine, properties);
+
+		return provider;
+	}
+
+	protected WikiPage page(String name, String author, String changenote)
+	{
+		WikiPage page = new WikiPage(engine, name);
+
+		page.setAuthor(author);
+		page.setAttribute(WikiPage.CHANGENOTE, changenote);
+		page.setLastModified(new Date());
+
+		return page;
+	}
+
+	/**
+	 * Writes text to name and commits it through the controller, the text is
+	 * the change note.
+	 */
+	protected PageMetaData save(String name, String text) throws Exception
+	{
+		return save(name, text.getBytes("UTF-8"), metaData(text));
+	}
+
+	protected PageMetaData save(String name, byte[] bytes, PageMetaData metaData) throws Exception
+	{
+		File f = new File(dir, name);
+		f.getParentFile().mkdirs();
+
+		gitController.commit(f, new ByteArrayInputStream(bytes), bytes.length, metaData);
+
+		return metaData;
+	}
+
+	/**
+	 * Writes text to path and commits it with git, the text is the message.
+	 */
+	protected RevCommit commit(String path, String text) throws Exception
+	{
+		return commit(path, text, "alice");
+	}
+
+	protected RevCommit commit(String path, String text, String author) throws Exception
+	{
+		File f = new File(dir, path);
+		FileUtils.writeStringToFile(f, text, "UTF-8");
+
+		git.add().addFilepattern(path).call();
+
+		return git.commit().setMessage(text).setAuthor(author, "").call();
+	}
+
+	/**
+	 * Renames from to to and commits it with git.
+	 */
+	protected RevCommit rename(String from, String to) throws Exception
+	{
+		new File(dir, from).renameTo(new File(dir, to));
+
+		git.rm().addFilepattern(from).call();
+		git.add().addFilepattern(to).call();
+
+		return git.commit().setMessage("rename " + from + " to " + to).setAuthor("alice", "").call();
+	}
+
+	protected ObjectId resolve(String revision) throws Exception
+	{
+		return git.getRepository().resolve(revision);
+	}
+
+	/**
+	 * @return the commit messages, oldest first
+	 */
+	protected List<String> getLog() throws Exception
+	{
+		List<String> log = new ArrayList<String>();
+
+		for (RevCommit commit : git.log().call())
+		{
+			log.add(0, commit.getFullMessage());
+		}
+
+		return log;
+	}
+
+	protected static PageMetaData metaData(String changenote)
+	{
+		PageMetaData metaData = new PageMetaData();
+
+		metaData.author = "alice";
+		metaData.email = "";
+		metaData.changenote = changenote;
+		metaData.commitTime = new Date();
+
+		return metaData;
+	}
+}
@@ -0,0 +1,326 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.api.ResetCommand.ResetType;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Builds, saves and reopens the history index of a repository that is
+ * changed with plain git commands.
+ */
+public class HistoryIndexTest extends GitTestCase
+{
+	public void testBuild() throws Exception
+	{
+		RevCommit c1 = commit("A.txt", "a1", "alice");
+		commit("B.txt", "b1", "bob");
+		RevCommit c3 = commit("A.txt", "a2", "carol");
+
+		HistoryIndex index = open(new Metrics());
+
+		List<PathVersion> versions = index.getVersions("A.txt");
+		assertEquals(2, versions.size());
+		assertEquals(c1, versions.get(0).commitId);
+		assertEquals("alice", versions.get(0).author);
+		assertEquals(2, versions.get(0).size);
+		assertEquals(c3, versions.get(1).commitId);
+		assertEquals("carol", versions.get(1).author);
+		assertEquals((long) c3.getCommitTime() * 1000, versions.get(1).commitTime);
+
+		assertEquals(1, index.getVersionCount("B.txt"));
+		assertEquals(0, index.getVersionCount("C.txt"));
+		assertNull(index.getVersion("A.txt", 3));
+
+		assertTrue(new File(new File(dir, ".git"), HistoryIndex.INDEX_FILE).exists());
+	}
+
+	public void testReopen() throws Exception
+	{
+		commit("A.txt", "a1", "alice");
+		RevCommit c2 = commit("A.txt", "a2", "bob");
+		git.rm().addFilepattern("A.txt").call();
+		RevCommit c3 = git.commit().setMessage("delete").setAuthor("carol", "").call();
+
+		open(new Metrics());
+
+		Metrics metrics = new Metrics();
+		HistoryIndex index = open(metrics);
+
+		assertEquals(0, metrics.get(Metrics.Counter.COMMITS_WALKED));
+
+		List<PathVersion> versions = index.getVersions("A.txt");
+		assertEquals(3, versions.size());
+		assertEquals(c2, versions.get(1).commitId);
+		assertEquals("bob", versions.get(1).author);
+		assertEquals(c3, versions.get(2).commitId);
+		assertTrue(versions.get(2).isDeleted());
+	}
+
+	/**
+	 * Commits made with git while the wiki was stopped are walked when the
+	 * index is reopened, the commits saved in it are not.
+	 */
+	public void testReplayExternalCommits() throws Exception
+	{
+		commit("A.txt", "a1", "alice");
+		commit("A.txt", "a2", "alice");
+
+		open(new Metrics());
+
+		commit("A.txt", "a3", "bob");
+		RevCommit c4 = commit("B.txt", "b1", "bob");
+
+		Metrics metrics = new Metrics();
+		HistoryIndex index = open(metrics);
+
+		assertEquals(2, metrics.get(Metrics.Counter.COMMITS_WALKED));
+		assertEquals(3, index.getVersionCount("A.txt"));
+		assertEquals(1, index.getVersionCount("B.txt"));
+		assertEquals(c4, index.getVersion("B.txt", 1).commitId);
+
+		// the replayed commits were saved
+		metrics = new Metrics();
+		open(metrics);
+
+		assertEquals(0, metrics.get(Metrics.Counter.COMMITS_WALKED));
+	}
+
+	/**
+	 * An index written in another format is rebuilt rather than read.
+	 */
+	public void testRejectOtherFormatVersion() throws Exception
+	{
+		commit("A.txt", "a1", "alice");
+		commit("A.txt", "a2", "alice");
+
+		open(new Metrics());
+
+		File indexFile = new File(new File(dir, ".git"), HistoryIndex.INDEX_FILE);
+
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+		int formatVersion;
+		try
+		{
+			raf.seek(4);
+			formatVersion = raf.readInt();
+			raf.seek(4);
+			raf.writeInt(formatVersion + 1);
+		} finally
+		{
+			raf.close();
+		}
+
+		Metrics metrics = new Metrics();
+		HistoryIndex index = open(metrics);
+
+		assertEquals(2, metrics.get(Metrics.Counter.COMMITS_WALKED));
+		assertEquals(2, index.getVersionCount("A.txt"));
+
+		raf = new RandomAccessFile(indexFile, "r");
+		try
+		{
+			raf.seek(4);
+			assertEquals(formatVersion, raf.readInt());
+		} finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * An index that is not an ancestor of HEAD, after the history was
+	 * rewritten, is rebuilt.
+	 */
+	public void testRebuildAfterReset() throws Exception
+	{
+		RevCommit c1 = commit("A.txt", "a1", "alice");
+		commit("A.txt", "a2", "alice");
+
+		open(new Metrics());
+
+		git.reset().setMode(ResetType.HARD).setRef(c1.name()).call();
+		RevCommit c3 = commit("A.txt", "a3", "bob");
+
+		HistoryIndex index = open(new Metrics());
+
+		List<PathVersion> versions = index.getVersions("A.txt");
+		assertEquals(2, versions.size());
+		assertEquals(c1, versions.get(0).commitId);
+		assertEquals(c3, versions.get(1).commitId);
+	}
+
+	public void testFollowRename() throws Exception
+	{
+		RevCommit c1 = commit("A.txt", "a1", "alice");
+		commit("A.txt", "a2", "alice");
+		RevCommit c3 = rename("A.txt", "B.txt");
+		RevCommit c4 = commit("B.txt", "b1", "bob");
+
+		HistoryIndex index = open(new Metrics());
+
+		// the delete of A.txt is not a version of B.txt
+		List<PathVersion> versions = index.getVersions("B.txt");
+		assertEquals(4, versions.size());
+		assertEquals(4, index.getVersionCount("B.txt"));
+		assertEquals(c1, versions.get(0).commitId);
+		assertEquals(c3, versions.get(2).commitId);
+		assertFalse(versions.get(2).isDeleted());
+		assertEquals(c4, index.getVersion("B.txt", 4).commitId);
+
+		assertEquals(3, index.getVersionCount("A.txt"));
+		assertTrue(index.getVersion("A.txt", 3).isDeleted());
+
+		// the renames are saved with the index
+		Metrics metrics = new Metrics();
+		index = open(metrics);
+
+		assertEquals(0, metrics.get(Metrics.Counter.COMMITS_WALKED));
+		assertEquals(4, index.getVersionCount("B.txt"));
+		assertEquals(c1, index.getVersion("B.txt", 1).commitId);
+	}
+
+	/**
+	 * Renames in commits added one by one are detected like those found by
+	 * the walk when the index is opened.
+	 */
+	public void testFollowRenameOnUpdate() throws Exception
+	{
+		RevCommit c1 = commit("A.txt", "a1", "alice");
+
+		HistoryIndex index = open(new Metrics());
+
+		RevCommit c2 = rename("A.txt", "B.txt");
+		index.update(git.getRepository(), c2, Collections.<PathChange> emptyList());
+		RevCommit c3 = rename("B.txt", "C.txt");
+		index.update(git.getRepository(), c3, Collections.<PathChange> emptyList());
+
+		List<PathVersion> versions = index.getVersions("C.txt");
+		assertEquals(3, versions.size());
+		assertEquals(c1, versions.get(0).commitId);
+		assertEquals(c2, versions.get(1).commitId);
+		assertEquals(c3, versions.get(2).commitId);
+
+		// B.txt keeps its own history up to the rename away from it
+		assertEquals(3, index.getVersionCount("B.txt"));
+		assertTrue(index.getVersion("B.txt", 3).isDeleted());
+	}
+
+	/**
+	 * A page moved back to its old name continues the versions it had there.
+	 */
+	public void testFollowRenameBack() throws Exception
+	{
+		commit("A.txt", "a1", "alice");
+		rename("A.txt", "B.txt");
+		RevCommit c3 = rename("B.txt", "A.txt");
+
+		HistoryIndex index = open(new Metrics());
+
+		List<PathVersion> versions = index.getVersions("A.txt");
+		assertEquals(3, versions.size());
+		assertEquals(c3, versions.get(2).commitId);
+		assertFalse(versions.get(2).isDeleted());
+	}
+
+	/**
+	 * Two pages renamed onto the same name in turn, each life of the name
+	 * continues the history of the page renamed onto it.
+	 */
+	public void testRenameOntoSameName() throws Exception
+	{
+		RevCommit a1 = commit("A.txt", "a1", "alice");
+		RevCommit d1 = commit("D.txt", "d1", "bob");
+		RevCommit toC = rename("A.txt", "C.txt");
+		RevCommit toE = rename("C.txt", "E.txt");
+
+		HistoryIndex index = open(new Metrics());
+
+		RevCommit d2 = rename("D.txt", "C.txt");
+		index.update(git.getRepository(), d2, Collections.<PathChange> emptyList());
+
+		assertRenamedOntoSameName(index, a1, d1, toC, toE, d2);
+
+		// found by the walk and saved with the index
+		new File(dir, ".git/" + HistoryIndex.INDEX_FILE).delete();
+		assertRenamedOntoSameName(open(new Metrics()), a1, d1, toC, toE, d2);
+
+		Metrics metrics = new Metrics();
+		index = open(metrics);
+
+		assertEquals(0, metrics.get(Metrics.Counter.COMMITS_WALKED));
+		assertRenamedOntoSameName(index, a1, d1, toC, toE, d2);
+	}
+
+	private void assertRenamedOntoSameName(HistoryIndex index, RevCommit a1, RevCommit d1, RevCommit toC,
+			RevCommit toE, RevCommit d2)
+	{
+		// D.txt, then C.txt since it was renamed onto it
+		List<PathVersion> versions = index.getVersions("C.txt");
+		assertEquals(2, versions.size());
+		assertEquals(2, index.getVersionCount("C.txt"));
+		assertEquals(d1, versions.get(0).commitId);
+		assertEquals(d2, versions.get(1).commitId);
+
+		// A.txt, the first life of C.txt and E.txt
+		versions = index.getVersions("E.txt");
+		assertEquals(3, versions.size());
+		assertEquals(3, index.getVersionCount("E.txt"));
+		assertEquals(a1, versions.get(0).commitId);
+		assertEquals(toC, versions.get(1).commitId);
+		assertEquals(toE, versions.get(2).commitId);
+	}
+
+	/**
+	 * Renames are followed at most MAX_RENAMES times, the versions before
+	 * are left out.
+	 */
+	public void testMaxRenames() throws Exception
+	{
+		commit("P0.txt", "p", "alice");
+
+		int n = HistoryIndex.MAX_RENAMES + 1;
+		for (int i = 1; i <= n; i++)
+		{
+			rename("P" + (i - 1) + ".txt", "P" + i + ".txt");
+		}
+
+		HistoryIndex index = open(new Metrics());
+
+		// MAX_RENAMES renames back to P0.txt, and the rename away
+		assertEquals(HistoryIndex.MAX_RENAMES + 2, index.getVersionCount("P" + (n - 1) + ".txt"));
+
+		// P0.txt is one rename too far
+		assertEquals(HistoryIndex.MAX_RENAMES + 1, index.getVersionCount("P" + n + ".txt"));
+		assertEquals(HistoryIndex.MAX_RENAMES + 1, index.getVersions("P" + n + ".txt").size());
+	}
+
+	private HistoryIndex open(Metrics metrics) throws Exception
+	{
+		HistoryIndex index = new HistoryIndex(metrics);
+
+		index.open(git.getRepository());
+
+		return index;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import junit.framework.TestCase;
+
+/**
+ * Records latencies and counters and reads them through the MBean.
+ */
+public class MetricsTest extends TestCase
+{
+	public void testRecord() throws Exception
+	{
+		Metrics metrics = new Metrics();
+
+		long start = metrics.start();
+		metrics.record(Metrics.Operation.GET_PAGE_TEXT, start, true);
+		metrics.record(Metrics.Operation.GET_PAGE_TEXT, start, false);
+		metrics.add(Metrics.Counter.BYTES_INFLATED, 100);
+		metrics.increment(Metrics.Counter.BYTES_INFLATED);
+
+		assertEquals(2, metrics.getCount(Metrics.Operation.GET_PAGE_TEXT));
+		assertEquals(1, metrics.getErrors(Metrics.Operation.GET_PAGE_TEXT));
+		assertEquals(0, metrics.getCount(Metrics.Operation.PUT_PAGE_TEXT));
+		assertEquals(101, metrics.get(Metrics.Counter.BYTES_INFLATED));
+
+		assertTrue(metrics.getPercentile(Metrics.Operation.GET_PAGE_TEXT, 0.99) <= metrics
+				.getMax(Metrics.Operation.GET_PAGE_TEXT));
+
+		// only the operations that were called
+		assertTrue(metrics.toString().contains("getPageText"));
+		assertFalse(metrics.toString().contains("putPageText"));
+	}
+
+	/**
+	 * A latency is counted in a bucket whose upper bound is at most 25% above
+	 * it.
+	 */
+	public void testBuckets()
+	{
+		for (long nanos = 0; nanos < 100000; nanos += 7)
+		{
+			assertBucket(nanos);
+		}
+
+		for (long nanos = 1; nanos > 0 && nanos < Long.MAX_VALUE / 2; nanos = nanos * 3 + 1)
+		{
+			assertBucket(nanos);
+		}
+	}
+
+	private static void assertBucket(long nanos)
+	{
+		int bucket = Metrics.Histogram.bucket(nanos);
+		long upperBound = Metrics.Histogram.upperBound(bucket);
+
+		assertTrue(nanos + " above " + upperBound, nanos <= upperBound);
+		assertTrue(nanos + " far below " + upperBound, upperBound <= nanos + nanos / 4);
+	}
+
+	public void testPercentile()
+	{
+		Metrics.Histogram h = new Metrics.Histogram();
+
+		for (int i = 1; i <= 100; i++)
+		{
+			h.record(i * 1000, true);
+		}
+
+		assertEquals(100000, h.getMax());
+		assertTrue("p50 " + h.percentile(0.5), h.percentile(0.5) >= 50000 && h.percentile(0.5) <= 62500);
+		assertEquals(100000, h.percentile(1.0));
+	}
+
+	public void testMBean() throws Exception
+	{
+		Metrics metrics = new Metrics();
+		metrics.record(Metrics.Operation.PUT_PAGE_TEXT, metrics.start(), false);
+		metrics.increment(Metrics.Counter.COMMITS_WALKED);
+
+		metrics.register("test");
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("de.jwi.jspwiki.git:type=Metrics,name=" + ObjectName.quote("test"));
+
+		try
+		{
+			assertEquals(1L, server.getAttribute(objectName, "putPageTextCount"));
+			assertEquals(1L, server.getAttribute(objectName, "putPageTextErrors"));
+			assertEquals(1L, server.getAttribute(objectName, "commitsWalked"));
+
+			try
+			{
+				server.invoke(objectName, "reset", new Object[0], new String[0]);
+				fail("invoked an operation");
+			} catch (ReflectionException e)
+			{
+				assertTrue(e.getCause() instanceof NoSuchMethodException);
+			}
+		} finally
+		{
+			metrics.unregister();
+		}
+
+		assertFalse(server.isRegistered(objectName));
+	}
+}
@@ -0,0 +1,253 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Appends to, compacts and reopens the page metadata log, also after it was
+ * left behind by a crash.
+ */
+public class PageMetaDataStoreTest extends GitTestCase
+{
+	private File logFile;
+
+	private File indexFile;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		logFile = new File(dir, PageMetaDataStore.LOG_FILE);
+		indexFile = new File(dir, PageMetaDataStore.INDEX_FILE);
+	}
+
+	public void testPutGetRemove() throws Exception
+	{
+		PageMetaDataStore store = open();
+
+		store.put("Main", metaData("alice", "first", 1));
+		store.put("Other", metaData("bob", null, 1));
+		store.put("Main", metaData("carol", "second", 2));
+		store.remove("Other");
+		store.remove("Missing");
+
+		assertEquals(1, store.size());
+		assertMetaData(store.get("Main"), "carol", "second", 2);
+		assertNull(store.get("Other"));
+
+		store.close();
+
+		store = open();
+
+		assertEquals(1, store.size());
+		assertMetaData(store.get("Main"), "carol", "second", 2);
+		assertNull(store.get("Other"));
+
+		store.close();
+	}
+
+	/**
+	 * Records appended after the index was saved are found by scanning the
+	 * end of the log, all of it without an index.
+	 */
+	public void testScan() throws Exception
+	{
+		PageMetaDataStore store = open();
+
+		store.put("Main", metaData("alice", "first", 1));
+		store.save();
+		store.put("Other", metaData("bob", "other", 1));
+
+		// not closed, as after a crash
+		PageMetaDataStore reopened = open();
+
+		assertEquals(2, reopened.size());
+		assertMetaData(reopened.get("Other"), "bob", "other", 1);
+
+		reopened.close();
+		store.close();
+
+		assertTrue(indexFile.delete());
+
+		store = open();
+
+		assertEquals(2, store.size());
+		assertMetaData(store.get("Main"), "alice", "first", 1);
+		assertMetaData(store.get("Other"), "bob", "other", 1);
+
+		store.close();
+	}
+
+	public void testCompaction() throws Exception
+	{
+		PageMetaDataStore store = open();
+
+		char[] note = new char[10 * 1024];
+		Arrays.fill(note, 'x');
+
+		store.put("Other", metaData("bob", "other", 1));
+
+		// the log is compacted when more than 1 MB and more than half of it
+		// are superseded records
+		for (int i = 1; i <= 200; i++)
+		{
+			store.put("Main", metaData("alice", new String(note), i));
+		}
+
+		assertTrue("garbage " + store.getGarbage(), store.getGarbage() < 1024 * 1024);
+		assertTrue("length " + logFile.length(), logFile.length() < 150 * note.length);
+
+		assertMetaData(store.get("Main"), "alice", new String(note), 200);
+		assertMetaData(store.get("Other"), "bob", "other", 1);
+
+		store.compact();
+
+		assertEquals(0, store.getGarbage());
+		assertTrue(logFile.length() < 2 * note.length);
+		assertTrue(indexFile.exists());
+
+		store.close();
+
+		store = open();
+
+		assertEquals(0, store.getGarbage());
+		assertMetaData(store.get("Main"), "alice", new String(note), 200);
+		assertMetaData(store.get("Other"), "bob", "other", 1);
+
+		store.close();
+	}
+
+	/**
+	 * A record cut short by a crash is truncated, the records before it are
+	 * kept and the log can be appended to again.
+	 */
+	public void testTornRecord() throws Exception
+	{
+		PageMetaDataStore store = open();
+
+		store.put("Main", metaData("alice", "first", 1));
+		store.put("Other", metaData("bob", "other", 1));
+		store.close();
+
+		long length = logFile.length();
+
+		// the first bytes of a record announcing 100 bytes
+		RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+		try
+		{
+			raf.seek(length);
+			raf.writeInt(100);
+			raf.writeByte(1);
+			raf.writeInt(4);
+			raf.write("Ma".getBytes("UTF-8"));
+		} finally
+		{
+			raf.close();
+		}
+
+		store = open();
+
+		assertEquals(length, logFile.length());
+		assertEquals(2, store.size());
+		assertMetaData(store.get("Main"), "alice", "first", 1);
+
+		store.put("Main", metaData("carol", "second", 2));
+		store.close();
+
+		assertTrue(indexFile.delete());
+
+		store = open();
+
+		assertMetaData(store.get("Main"), "carol", "second", 2);
+		assertMetaData(store.get("Other"), "bob", "other", 1);
+
+		store.close();
+	}
+
+	/**
+	 * An index whose offsets point to the records of other pages, as one saved
+	 * before the log was compacted, does not return them.
+	 */
+	public void testStaleIndex() throws Exception
+	{
+		PageMetaDataStore store = open();
+
+		store.put("Other", metaData("bob", "other", 1));
+		store.put("Main", metaData("alice", "first", 1));
+		store.close();
+
+		byte[] staleIndex = FileUtils.readFileToByteArray(indexFile);
+
+		char[] note = new char[1024];
+		Arrays.fill(note, 'x');
+
+		store = open();
+
+		store.remove("Other");
+		store.put("Main", metaData("alice", new String(note), 2));
+		store.compact();
+		store.close();
+
+		FileUtils.writeByteArrayToFile(indexFile, staleIndex);
+
+		store = open();
+
+		assertNull(store.get("Other"));
+
+		PageMetaData metaData = store.get("Main");
+		assertTrue(metaData == null || metaData.version == 2);
+
+		store.close();
+	}
+
+	private PageMetaDataStore open() throws Exception
+	{
+		PageMetaDataStore store = new PageMetaDataStore(dir);
+
+		store.open();
+
+		return store;
+	}
+
+	private static PageMetaData metaData(String author, String changenote, int version)
+	{
+		PageMetaData metaData = new PageMetaData();
+
+		metaData.author = author;
+		metaData.changenote = changenote;
+		metaData.version = version;
+		metaData.commitTime = new Date(1000L * version);
+
+		return metaData;
+	}
+
+	private static void assertMetaData(PageMetaData metaData, String author, String changenote, int version)
+	{
+		assertNotNull(metaData);
+		assertEquals(author, metaData.author);
+		assertEquals(changenote, metaData.changenote);
+		assertEquals(version, metaData.version);
+		assertEquals(new Date(1000L * version), metaData.commitTime);
+	}
+}
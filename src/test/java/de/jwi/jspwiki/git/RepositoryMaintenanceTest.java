@@ -0,0 +1,123 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+
+/**
+ * Repacks a repository when it has too many loose objects.
+ */
+public class RepositoryMaintenanceTest extends GitTestCase
+{
+	/**
+	 * Each commit of one file leaves three loose objects: blob, tree and
+	 * commit.
+	 */
+	public void testMaintain() throws Exception
+	{
+		for (int i = 0; i < 5; i++)
+		{
+			commit("A.txt", "a" + i);
+		}
+
+		RepositoryMaintenance maintenance = new RepositoryMaintenance((FileRepository) git.getRepository(), 1000,
+				20, 10);
+
+		assertFalse(maintenance.maintain());
+		assertEquals(15, maintenance.getLooseObjectCount());
+		assertNull(maintenance.getLastRun());
+
+		for (int i = 5; i < 10; i++)
+		{
+			commit("A.txt", "a" + i);
+		}
+
+		assertTrue(maintenance.maintain());
+		assertEquals(0, maintenance.getLooseObjectCount());
+		assertEquals(1, maintenance.getPackFileCount());
+		assertNotNull(maintenance.getLastRun());
+
+		assertFalse(maintenance.maintain());
+
+		assertEquals(10, getLog().size());
+		assertEquals("a9", new String(git.getRepository().open(resolve("HEAD:A.txt")).getBytes(), "UTF-8"));
+	}
+
+	/**
+	 * An object stored for a commit that is still queued is not referenced
+	 * yet, it must survive the prune.
+	 */
+	public void testKeepUnreferencedObjects() throws Exception
+	{
+		openController(GitController.COMMITMODE_SYNC);
+
+		for (int i = 0; i < 10; i++)
+		{
+			save("A.txt", "a" + i);
+		}
+
+		byte[] bytes = "not committed yet".getBytes("UTF-8");
+		PathChange change = gitController.store(new File(dir, "B.txt"), new ByteArrayInputStream(bytes),
+				bytes.length);
+
+		RepositoryMaintenance maintenance = new RepositoryMaintenance((FileRepository) git.getRepository(), 1000,
+				20, 10);
+
+		assertTrue(maintenance.maintain());
+
+		assertEquals("not committed yet", IOUtils.toString(git.getRepository().open(change.blobId).openStream(),
+				"UTF-8"));
+	}
+
+	/**
+	 * The controller repacks on its maintenance thread.
+	 */
+	public void testBackground() throws Exception
+	{
+		Properties properties = new Properties();
+		properties.setProperty(GitController.PROP_MAINTENANCEINTERVAL, "1");
+		properties.setProperty(GitController.PROP_MAXLOOSEOBJECTS, "20");
+
+		openController(GitController.COMMITMODE_SYNC, properties);
+
+		for (int i = 0; i < 10; i++)
+		{
+			save("A.txt", "a" + i);
+		}
+
+		RepositoryMaintenance maintenance = gitController.getMaintenance();
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (maintenance.getLastRun() == null)
+		{
+			assertTrue("not repacked", System.currentTimeMillis() < deadline);
+			Thread.sleep(50);
+		}
+
+		gitController.close();
+		gitController = null;
+
+		assertEquals(1, maintenance.getPackFileCount());
+		assertEquals(10, getLog().size());
+	}
+}
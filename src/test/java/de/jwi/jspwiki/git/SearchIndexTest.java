@@ -0,0 +1,262 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Builds, saves and reopens the search index of a repository that is changed
+ * with plain git commands.
+ */
+public class SearchIndexTest extends GitTestCase
+{
+	private static final Collection<String> NONE = Collections.emptyList();
+
+	public void testSearch() throws Exception
+	{
+		commit("Apple+Pie.txt", "apples and cinnamon");
+		commit("Banana.txt", "yellow fruit with cinnamon");
+		commit("Banana.txt", "yellow fruit");
+
+		SearchIndex index = open(new Metrics());
+
+		assertEquals(paths("Apple+Pie.txt"), paths(index.search(words("cinnamon"), NONE, NONE)));
+		assertEquals(paths("Apple+Pie.txt", "Banana.txt"), paths(index.search(NONE, NONE, words("cinnamon fruit"))));
+		assertEquals(paths(), paths(index.search(words("cinnamon"), words("apples"), NONE)));
+
+		// by the decoded file name
+		assertEquals(paths("Apple+Pie.txt"), paths(index.search(words("pie"), NONE, NONE)));
+
+		List<SearchIndex.Hit> hits = index.searchHistory(words("cinnamon"), NONE, NONE);
+		assertEquals(paths("Apple+Pie.txt", "Banana.txt"), paths(hits));
+
+		hits = index.search(words("yellow"), NONE, NONE);
+		assertEquals(1, hits.size());
+		assertEquals(git.getRepository().resolve("HEAD:Banana.txt"), hits.get(0).blobId);
+	}
+
+	/**
+	 * A saved index is loaded instead of walking the commits again, commits
+	 * made since it was saved are added.
+	 */
+	public void testReopen() throws Exception
+	{
+		commit("Apple.txt", "red apples");
+		commit("Banana.txt", "yellow bananas");
+
+		open(new Metrics()).save();
+
+		Metrics metrics = new Metrics();
+		SearchIndex index = open(metrics);
+
+		assertEquals(0, metrics.get(Metrics.Counter.COMMITS_WALKED));
+		assertEquals(paths("Banana.txt"), paths(index.search(words("bananas"), NONE, NONE)));
+
+		commit("Banana.txt", "green bananas");
+		git.rm().addFilepattern("Apple.txt").call();
+		git.commit().setMessage("delete").setAuthor("alice", "").call();
+
+		index.update(git.getRepository());
+
+		assertEquals(2, metrics.get(Metrics.Counter.COMMITS_WALKED));
+		assertEquals(paths("Banana.txt"), paths(index.search(words("green"), NONE, NONE)));
+		assertEquals(paths(), paths(index.search(words("yellow"), NONE, NONE)));
+		assertEquals(paths(), paths(index.search(words("apples"), NONE, NONE)));
+		assertEquals(paths("Apple.txt"), paths(index.searchHistory(words("apples"), NONE, NONE)));
+
+		index.save();
+
+		metrics = new Metrics();
+		index = open(metrics);
+
+		assertEquals(0, metrics.get(Metrics.Counter.COMMITS_WALKED));
+		assertEquals(paths("Banana.txt"), paths(index.search(words("green"), NONE, NONE)));
+		assertEquals(paths("Banana.txt"), paths(index.searchHistory(words("yellow"), NONE, NONE)));
+	}
+
+	/**
+	 * An index written in another format is rebuilt rather than read.
+	 */
+	public void testRejectOtherFormatVersion() throws Exception
+	{
+		commit("Apple.txt", "red apples");
+		commit("Banana.txt", "yellow bananas");
+
+		open(new Metrics()).save();
+
+		File indexFile = new File(new File(dir, ".git"), SearchIndex.INDEX_FILE);
+
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+		try
+		{
+			raf.seek(4);
+			int formatVersion = raf.readInt();
+			raf.seek(4);
+			raf.writeInt(formatVersion + 1);
+		} finally
+		{
+			raf.close();
+		}
+
+		Metrics metrics = new Metrics();
+		SearchIndex index = open(metrics);
+
+		assertEquals(2, metrics.get(Metrics.Counter.COMMITS_WALKED));
+		assertEquals(paths("Apple.txt"), paths(index.search(words("apples"), NONE, NONE)));
+	}
+
+	/**
+	 * An old version that becomes current again, and a file copied and
+	 * renamed, are found by the search of the current versions, also after
+	 * the index is reloaded.
+	 */
+	public void testCurrentVersions() throws Exception
+	{
+		commit("Apple.txt", "red apples");
+		commit("Apple.txt", "green apples");
+		commit("Apple.txt", "red apples");
+		commit("Copy.txt", "red apples");
+		rename("Copy.txt", "Moved.txt");
+		commit("Banana.txt", "red bananas");
+		commit("Banana.txt", "yellow bananas");
+
+		SearchIndex index = open(new Metrics());
+
+		assertCurrentVersions(index);
+
+		index.save();
+		index = open(new Metrics());
+
+		assertCurrentVersions(index);
+
+		commit("Moved.txt", "green apples");
+		index.update(git.getRepository());
+
+		assertEquals(paths("Apple.txt"), paths(index.search(words("red"), NONE, NONE)));
+		assertEquals(paths("Moved.txt"), paths(index.search(words("green"), NONE, NONE)));
+	}
+
+	private void assertCurrentVersions(SearchIndex index) throws Exception
+	{
+		assertEquals(paths("Apple.txt", "Moved.txt"), paths(index.search(words("red"), NONE, NONE)));
+		assertEquals(paths(), paths(index.search(words("green"), NONE, NONE)));
+		assertEquals(paths("Apple.txt", "Banana.txt", "Copy.txt", "Moved.txt"), paths(index.searchHistory(words("red"), NONE, NONE)));
+		assertEquals(paths("Banana.txt"), paths(index.search(words("yellow"), NONE, NONE)));
+	}
+
+	/**
+	 * A corrupt index of a repository without commits is cleared and not
+	 * saved again.
+	 */
+	public void testSaveEmpty() throws Exception
+	{
+		File indexFile = new File(new File(dir, ".git"), SearchIndex.INDEX_FILE);
+		FileUtils.writeStringToFile(indexFile, "corrupt", "UTF-8");
+
+		SearchIndex index = open(new Metrics());
+
+		assertEquals(paths(), paths(index.search(words("corrupt"), NONE, NONE)));
+
+		index.save();
+
+		assertFalse(indexFile.exists());
+
+		commit("Apple.txt", "red apples");
+		index.update(git.getRepository());
+		index.save();
+
+		assertTrue(indexFile.exists());
+		assertEquals(paths("Apple.txt"), paths(open(new Metrics()).search(words("apples"), NONE, NONE)));
+	}
+
+	/**
+	 * The background thread loads the index at start and adds the commits it
+	 * is told about.
+	 */
+	public void testBackgroundUpdate() throws Exception
+	{
+		commit("Apple.txt", "red apples");
+
+		SearchIndex index = new SearchIndex(new Metrics());
+		index.start(git.getRepository(), "test");
+
+		try
+		{
+			index.awaitUpdate();
+
+			assertEquals(paths("Apple.txt"), paths(index.search(words("apples"), NONE, NONE)));
+
+			commit("Banana.txt", "yellow bananas");
+
+			index.requestUpdate();
+			index.awaitUpdate();
+
+			assertEquals(paths("Banana.txt"), paths(index.search(words("bananas"), NONE, NONE)));
+		} finally
+		{
+			index.close();
+		}
+
+		index.save();
+
+		Metrics metrics = new Metrics();
+		open(metrics);
+
+		assertEquals(0, metrics.get(Metrics.Counter.COMMITS_WALKED));
+	}
+
+	private SearchIndex open(Metrics metrics) throws Exception
+	{
+		SearchIndex index = new SearchIndex(metrics);
+
+		index.update(git.getRepository());
+
+		return index;
+	}
+
+	private static Collection<String> words(String text)
+	{
+		return SearchIndex.words(text);
+	}
+
+	private static Set<String> paths(String... paths)
+	{
+		return new TreeSet<String>(Arrays.asList(paths));
+	}
+
+	private static Set<String> paths(List<SearchIndex.Hit> hits)
+	{
+		Set<String> paths = new TreeSet<String>();
+
+		for (SearchIndex.Hit hit : hits)
+		{
+			paths.add(hit.path);
+		}
+
+		return paths;
+	}
+}
@@ -0,0 +1,166 @@
+/*
+
+	Copyright 2016 Jürgen Weber
+
+	Licensed under the Apache License, Version 2.0 (the "License");
+	you may not use this file except in compliance with the License.
+	You may obtain a copy of the License at
+
+		http://www.apache.org/licenses/LICENSE-2.0
+
+	Unless required by applicable law or agreed to in writing, software
+	distributed under the License is distributed on an "AS IS" BASIS,
+	WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+	See the License for the specific language governing permissions and
+	limitations under the License.
+ */
+
+package de.jwi.jspwiki.git;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+/**
+ * Builds version lists and adds, records and drops pending versions.
+ */
+public class VersionListTest extends TestCase
+{
+	public void testBuilder() throws Exception
+	{
+		VersionList.Builder builder = new VersionList.Builder();
+
+		// grows past its initial capacity
+		for (int i = 0; i < 5; i++)
+		{
+			builder.add(id("commit " + i), id("blob " + i), "author " + i, 1000L * i, i);
+		}
+
+		VersionList l = builder.build();
+
+		assertEquals(5, l.size());
+		assertEquals(5, l.getCommittedCount());
+
+		for (int i = 0; i < 5; i++)
+		{
+			assertVersion(l.get(i), i);
+			assertFalse(l.get(i).isPending());
+		}
+
+		assertOutOfBounds(l, -1);
+		assertOutOfBounds(l, 5);
+
+		assertEquals(0, VersionList.EMPTY.size());
+		assertOutOfBounds(VersionList.EMPTY, 0);
+	}
+
+	/**
+	 * The raw ids written for a version are read back as the same version.
+	 */
+	public void testRawIds() throws Exception
+	{
+		VersionList.Builder builder = new VersionList.Builder();
+		builder.add(id("commit 0"), id("blob 0"), "author 0", 0, 0);
+		VersionList l = builder.build();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		l.writeIds(out, 0);
+		out.close();
+
+		byte[] ids = bytes.toByteArray();
+		assertEquals(VersionList.ID_BYTES, ids.length);
+		assertEquals(id("commit 0"), ObjectId.fromRaw(ids, 0));
+		assertEquals(id("blob 0"), ObjectId.fromRaw(ids, Constants.OBJECT_ID_LENGTH));
+
+		builder = new VersionList.Builder();
+		builder.add(ids, "author 0", 0, 0);
+
+		assertVersion(builder.build().get(0), 0);
+	}
+
+	/**
+	 * Pending versions follow the committed ones. A commit replaces the oldest
+	 * pending version, the lists it was made from stay unchanged.
+	 */
+	public void testPending() throws Exception
+	{
+		VersionList.Builder builder = new VersionList.Builder();
+		builder.add(id("commit 0"), id("blob 0"), "author 0", 0, 0);
+		VersionList committed = builder.build();
+
+		VersionList l = committed.addPending(pending(1)).addPending(pending(2));
+
+		assertEquals(1, committed.size());
+		assertEquals(3, l.size());
+		assertEquals(1, l.getCommittedCount());
+		assertTrue(l.get(1).isPending());
+		assertEquals("changenote 2", l.get(2).changenote);
+
+		VersionList recorded = l.replacePending(version(1));
+
+		assertEquals(3, l.size());
+		assertTrue(l.get(1).isPending());
+
+		assertEquals(3, recorded.size());
+		assertEquals(2, recorded.getCommittedCount());
+		assertVersion(recorded.get(1), 1);
+		assertTrue(recorded.get(2).isPending());
+
+		// a pending version whose change was empty is dropped
+		VersionList dropped = recorded.replacePending(null);
+
+		assertEquals(2, dropped.size());
+		assertEquals(2, dropped.getCommittedCount());
+		assertSame(dropped, dropped.replacePending(null));
+
+		// a commit made outside the queue is appended
+		VersionList appended = dropped.replacePending(version(2));
+
+		assertEquals(3, appended.size());
+		assertEquals(3, appended.getCommittedCount());
+		assertVersion(appended.get(2), 2);
+		assertVersion(appended.get(0), 0);
+	}
+
+	private static void assertVersion(PathVersion version, int i)
+	{
+		assertEquals(id("commit " + i), version.commitId);
+		assertEquals(id("blob " + i), version.blobId);
+		assertEquals("author " + i, version.author);
+		assertEquals(1000L * i, version.commitTime);
+		assertEquals(i, version.size);
+	}
+
+	private static void assertOutOfBounds(VersionList l, int i)
+	{
+		try
+		{
+			l.get(i);
+			fail("got version " + i + " of " + l.size());
+		} catch (IndexOutOfBoundsException e)
+		{
+			// expected
+		}
+	}
+
+	private static PathVersion version(int i)
+	{
+		return new PathVersion(id("commit " + i), id("blob " + i), "author " + i, 1000L * i, i);
+	}
+
+	private static PathVersion pending(int i)
+	{
+		return new PathVersion(null, id("blob " + i), "author " + i, 1000L * i, i, "changenote " + i);
+	}
+
+	private static ObjectId id(String s)
+	{
+		return new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, Constants.encode(s));
+	}
+}